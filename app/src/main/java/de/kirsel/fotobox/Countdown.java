@@ -0,0 +1,112 @@
+package de.kirsel.fotobox;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * Countdown driven by a {@link Handler}, so the thread it runs on is never blocked. Every second the
+ * listener is told how many seconds are left, additional steps can be scheduled at any second.
+ */
+public class Countdown {
+
+  public interface Listener {
+    void onTick(int secondsLeft);
+
+    void onFinished();
+
+    void onCancelled();
+  }
+
+  private final Handler mHandler;
+  private final int mSeconds;
+  private final long mDebounceMillis;
+  private final Listener mListener;
+  private final SparseArray<Runnable> mSteps = new SparseArray<>();
+
+  private int mSecondsLeft = -1;
+  private long mLastStart;
+
+  public Countdown(Handler handler, int seconds, long debounceMillis, Listener listener) {
+    mHandler = handler;
+    mSeconds = seconds;
+    mDebounceMillis = debounceMillis;
+    mListener = listener;
+  }
+
+  /**
+   * Run the given step when the given number of seconds is left, before {@link Listener#onTick(int)}.
+   * A step at {@code seconds + 1} runs as soon as the countdown is started.
+   */
+  public void addStep(int secondsLeft, Runnable step) {
+    mSteps.put(secondsLeft, step);
+  }
+
+  /**
+   * Start the countdown.
+   *
+   * @return false if the countdown is already running or was started too recently
+   */
+  public boolean start() {
+    long now = SystemClock.elapsedRealtime();
+    if (isRunning() || now - mLastStart < mDebounceMillis) {
+      return false;
+    }
+    mLastStart = now;
+    mSecondsLeft = mSeconds;
+    runStep(mSeconds + 1);
+    // Same rhythm as before: every number is shown half a second into its second.
+    mHandler.postDelayed(mTick, 500);
+    return true;
+  }
+
+  /**
+   * Cancel a running countdown and start it again from the beginning.
+   */
+  public void restart() {
+    cancel();
+    mLastStart = 0;
+    start();
+  }
+
+  public void cancel() {
+    if (!isRunning()) {
+      return;
+    }
+    mHandler.removeCallbacks(mTick);
+    mHandler.removeCallbacks(mFinish);
+    mSecondsLeft = -1;
+    mListener.onCancelled();
+  }
+
+  public boolean isRunning() {
+    return mSecondsLeft >= 0;
+  }
+
+  private final Runnable mTick = new Runnable() {
+    @Override public void run() {
+      runStep(mSecondsLeft);
+      mListener.onTick(mSecondsLeft);
+      if (mSecondsLeft > 0) {
+        mSecondsLeft--;
+        mHandler.postDelayed(mTick, 1000);
+      } else {
+        mHandler.postDelayed(mFinish, 500);
+      }
+    }
+  };
+
+  private final Runnable mFinish = new Runnable() {
+    @Override public void run() {
+      mSecondsLeft = -1;
+      mListener.onFinished();
+    }
+  };
+
+  private void runStep(int secondsLeft) {
+    Runnable step = mSteps.get(secondsLeft);
+    if (step != null) {
+      step.run();
+    }
+  }
+}
@@ -19,9 +19,6 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.media.Image;
-import android.media.ImageReader;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -29,13 +26,31 @@ import android.util.Log;
 import android.view.KeyEvent;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
-import com.google.android.things.contrib.driver.tm1637.NumericDisplay;
+import de.kirsel.fotobox.hardware.CameraSource;
 import de.kirsel.fotobox.hardware.FotoCamera;
+import de.kirsel.fotobox.hardware.NumberDisplay;
+import de.kirsel.fotobox.hardware.PrintJob;
+import de.kirsel.fotobox.hardware.SegmentDisplay;
+import de.kirsel.fotobox.hardware.StagingStore;
+import de.kirsel.fotobox.hardware.StorageQueue;
+import de.kirsel.fotobox.hardware.StorageSource;
 import de.kirsel.fotobox.hardware.ThermalPrinter;
 import de.kirsel.fotobox.hardware.UsbStorage;
+import de.kirsel.fotobox.hardware.UsbSync;
 import de.kirsel.fotobox.utilities.BoardDefaults;
+import de.kirsel.fotobox.utilities.BufferPool;
+import de.kirsel.fotobox.utilities.CollageCompositor;
+import de.kirsel.fotobox.utilities.DerivativeDecoder;
+import de.kirsel.fotobox.utilities.Ditherer;
+import de.kirsel.fotobox.utilities.LatencyTracer;
+import de.kirsel.fotobox.utilities.PhotoServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Doorbell activity that capture a picture from the Raspberry Pi 3
@@ -46,23 +61,60 @@ public class FotoActivity extends Activity {
   private static final String TAG = FotoActivity.class.getSimpleName();
 
   public static final boolean USE_THERMAL_PRINTER = false;
+  private static final Ditherer.Mode PRINT_DITHER_MODE = Ditherer.Mode.FLOYD_STEINBERG;
+
+  // Keep the camera session open and pre-warmed during the countdown.
+  private static final boolean KEEP_CAMERA_SESSION = true;
+
+  // Pictures per button press, 4 for a photo strip.
+  private static final int BURST_SIZE = 1;
+  // With more than one picture per press, they are also saved together as a strip at this resolution.
+  private static final int COLLAGE_DPI = 300;
+  private static final String COLLAGE_CAPTION = "Fotobox";
+
+  private static final int COUNTDOWN_SECONDS = 5;
+  // Seconds left on the countdown when AF/AE get locked.
+  private static final int COUNTDOWN_LOCK_EXPOSURE_AT = 1;
+  // Button presses closer together than this are ignored.
+  private static final long BUTTON_DEBOUNCE_MILLIS = 1000;
+
+  // How the drive is picked when more than one USB stick is plugged in.
+  private static final UsbStorage.Selection USB_DRIVE_SELECTION = UsbStorage.Selection.MOST_FREE_SPACE;
+
+  // Guests download their photos from http://<box>:8080/photo/<name>.
+  private static final int PHOTO_SERVER_PORT = 8080;
+
+  // Captures waiting to be staged on the internal flash, and what happens once that many are pending.
+  // Staging is fast, so waiting for it is fine and nothing needs to be spilled.
+  private static final int SAVE_QUEUE_CAPACITY = Math.max(4, BURST_SIZE);
+  private static final StorageQueue.Policy SAVE_QUEUE_POLICY = StorageQueue.Policy.BLOCK;
 
   private FotoCamera mCamera;
   private UsbStorage mStorage;
+  private StorageQueue mStorageQueue;
+  private UsbSync mUsbSync;
+  private PhotoServer mPhotoServer;
   private ThermalPrinter mThermalPrinter;
   private ButtonInputDriver mButtonInputDriver;
   private Handler mCameraHandler;
-  private NumericDisplay segmentDisplay;
+  private NumberDisplay segmentDisplay;
+  private Countdown mCountdown;
+  private CollageCompositor mCollageCompositor;
+  private final List<ByteBuffer> mCollageFrames = new ArrayList<>();
+  private final LatencyTracer mTracer = LatencyTracer.getInstance();
 
   /**
    * An additional thread for running Camera tasks that shouldn't block the UI.
    */
   private HandlerThread mCameraThread;
   private HandlerThread mStorageThread;
+  private HandlerThread mCollageThread;
+  private Handler mCollageHandler;
 
   @Override public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     Log.d(TAG, "FotoActivity created.");
+    mTracer.setOutputFile(new File(getFilesDir(), "latency.csv"));
 
     // We need permission to access the camera
     if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
@@ -87,10 +139,65 @@ public class FotoActivity extends Activity {
     initPIO();
 
     mCamera = FotoCamera.getInstance();
-    mCamera.initializeCamera(this, mCameraHandler, mOnImageAvailableListener);
+    mCamera.setKeepSessionAlive(KEEP_CAMERA_SESSION);
+    mCamera.setBurstSize(BURST_SIZE);
+    mCamera.initializeCamera(this, mCameraHandler, mCameraCallback);
 
+    mCountdown = new Countdown(new Handler(), COUNTDOWN_SECONDS, BUTTON_DEBOUNCE_MILLIS, mCountdownListener);
+    mCountdown.addStep(COUNTDOWN_SECONDS + 1, new Runnable() {
+      @Override public void run() {
+        mCameraHandler.post(new Runnable() {
+          @Override public void run() {
+            mCamera.startPreview();
+          }
+        });
+      }
+    });
+    mCountdown.addStep(COUNTDOWN_LOCK_EXPOSURE_AT, new Runnable() {
+      @Override public void run() {
+        mCameraHandler.post(new Runnable() {
+          @Override public void run() {
+            mCamera.lockFocusAndExposure();
+          }
+        });
+      }
+    });
+
+    final Handler storageHandler = new Handler(mStorageThread.getLooper());
     mStorage = UsbStorage.getInstance();
-    mStorage.initializeUsbStorage(this);
+    mStorage.setSelection(USB_DRIVE_SELECTION);
+    Executor storageExecutor = new Executor() {
+      @Override public void execute(Runnable command) {
+        storageHandler.post(command);
+      }
+    };
+    // Captures go to the internal flash first and are copied to the drive in the background.
+    StagingStore staging = new StagingStore(new File(getFilesDir(), "staging"));
+    mUsbSync = new UsbSync(staging, mStorage);
+    mStorage.setOnStorageAttachedListener(new Runnable() {
+      @Override public void run() {
+        mUsbSync.onStorageAttached();
+      }
+    });
+    mStorage.initializeUsbStorage(this, storageHandler);
+    mUsbSync.requestSync();
+    mStorageQueue = new StorageQueue(staging, storageExecutor, new File(getFilesDir(), "spill"), SAVE_QUEUE_CAPACITY,
+        SAVE_QUEUE_POLICY);
+
+    mPhotoServer = new PhotoServer(PHOTO_SERVER_PORT, new StorageSource(staging, mStorage));
+    try {
+      mPhotoServer.start();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not start photo server", e);
+    }
+
+    if (BURST_SIZE > 1) {
+      mCollageThread = new HandlerThread("CollageBackground");
+      mCollageThread.start();
+      mCollageHandler = new Handler(mCollageThread.getLooper());
+      mCollageCompositor = new CollageCompositor(CollageCompositor.Layout.strip(BURST_SIZE, COLLAGE_DPI));
+      mCollageCompositor.setCaption(COLLAGE_CAPTION);
+    }
   }
 
   private void initPIO() {
@@ -105,20 +212,35 @@ public class FotoActivity extends Activity {
       Log.w(TAG, "Could not open GPIO pins", e);
     }
     try {
-      segmentDisplay = new NumericDisplay(BoardDefaults.getGPIOforData(), BoardDefaults.getGPIOforClock());
-      segmentDisplay.setBrightness(1.0f);
-      segmentDisplay.setColonEnabled(false);
+      segmentDisplay = new SegmentDisplay(BoardDefaults.getGPIOforData(), BoardDefaults.getGPIOforClock());
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  @Override public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      // The pools only save allocations, the next picture simply allocates its buffers again.
+      BufferPool.getInstance().trim();
+    }
+  }
+
   @Override protected void onDestroy() {
     super.onDestroy();
+    mCountdown.cancel();
     mCamera.shutDown();
+    mTracer.dump();
+    BufferPool.getInstance().logStats();
 
     mCameraThread.quitSafely();
     mStorageThread.quitSafely();
+    if (mCollageThread != null) {
+      mCollageThread.quitSafely();
+    }
+    mUsbSync.shutDown();
+    mPhotoServer.stop();
+    mStorage.shutDown(this);
     try {
       mButtonInputDriver.close();
     } catch (IOException e) {
@@ -143,55 +265,134 @@ public class FotoActivity extends Activity {
   @Override public boolean onKeyUp(int keyCode, KeyEvent event) {
     if (keyCode == KeyEvent.KEYCODE_ENTER) {
       Log.d(TAG, "button pressed");
-      startCountdown();
+      if (mCountdown.start()) {
+        mTracer.begin();
+      } else {
+        Log.d(TAG, "Countdown already running, button press ignored");
+      }
       return true;
     }
     return super.onKeyUp(keyCode, event);
   }
 
   /**
-   * Listener for new camera images.
+   * Callback for new camera images.
    */
-  private ImageReader.OnImageAvailableListener mOnImageAvailableListener = new ImageReader.OnImageAvailableListener() {
-    @Override public void onImageAvailable(ImageReader reader) {
-      Image image = reader.acquireNextImage();
-      // get image bytes
-      ByteBuffer imageBuf = image.getPlanes()[0].getBuffer();
-      final byte[] imageBytes = new byte[imageBuf.capacity()];
-      imageBuf.get(imageBytes);
-      Bitmap bitmap = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
-      image.close();
+  private final CameraSource.Callback mCameraCallback = new CameraSource.Callback() {
+    @Override public void onJpeg(ByteBuffer imageBuf) {
+      // The camera already delivers an encoded JPEG, so it is written to the drive as it is.
+      mStorageQueue.enqueue(imageBuf);
+      if (mCollageCompositor != null) {
+        addToCollage(imageBuf);
+      }
+
+      // Only decode the picture if somebody actually needs the pixels, and only at their resolution.
+      Bitmap bitmap = null;
+      if (USE_THERMAL_PRINTER) {
+        bitmap = DerivativeDecoder.decodeToWidth(imageBuf, ThermalPrinter.DOT_WIDTH);
+        mTracer.mark(LatencyTracer.Stage.DECODE);
+      }
 
       onPictureTaken(bitmap);
     }
   };
 
+  /**
+   * Keep a copy of the capture until the burst is complete, then compose and save the strip in the
+   * background. The camera buffer is only valid during the callback.
+   */
+  private void addToCollage(ByteBuffer imageBuf) {
+    ByteBuffer copy = BufferPool.getInstance().acquireByteBuffer(imageBuf.remaining());
+    copy.put(imageBuf.duplicate());
+    copy.flip();
+    mCollageFrames.add(copy);
+    if (mCollageFrames.size() < BURST_SIZE) {
+      return;
+    }
+
+    final List<ByteBuffer> frames = new ArrayList<>(mCollageFrames);
+    mCollageFrames.clear();
+    mCollageHandler.post(new Runnable() {
+      @Override public void run() {
+        Bitmap collage = mCollageCompositor.compose(frames);
+        for (ByteBuffer frame : frames) {
+          BufferPool.getInstance().releaseByteBuffer(frame);
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        collage.compress(Bitmap.CompressFormat.JPEG, 95, jpeg);
+        BufferPool.getInstance().releaseBitmap(collage);
+        mStorageQueue.enqueue(ByteBuffer.wrap(jpeg.toByteArray()));
+        Log.d(TAG, "Collage of " + frames.size() + " pictures saved");
+      }
+    });
+  }
+
   private void onPictureTaken(Bitmap bitmap) {
     Log.d(TAG, "Picture taken!");
-    mStorage.saveImage(bitmap);
+    if (bitmap != null) {
+      printImage(bitmap);
+    }
   }
 
   private void printImage(Bitmap bitmap) {
     if (bitmap != null) {
-      //TODO
+      // The job starts printing while the rest of the photo is still being encoded.
+      PrintJob job = new PrintJob("photo", PrintJob.PRIORITY_NORMAL).setListener(mPrintListener);
+      mTracer.attach(job);
+      mThermalPrinter.printPhoto(job, bitmap, PRINT_DITHER_MODE);
+      BufferPool.getInstance().releaseBitmap(bitmap);
     } else {
       Log.d(TAG, "Bitmap == null");
     }
   }
 
-  private void startCountdown() {
-    Log.d(TAG, "Countdown started");
+  private final PrintJob.Listener mPrintListener = new PrintJob.Listener() {
+    @Override public void onProgress(PrintJob job, int segmentsDone, int segmentCount) {
+    }
 
-    try {
-      for (int i = 5; i >= 0; i--) {
+    @Override public void onFinished(PrintJob job) {
+      mTracer.mark(LatencyTracer.Stage.PRINT_DONE, job);
+      mThermalPrinter.logStats();
+    }
+
+    @Override public void onCancelled(PrintJob job) {
+      Log.d(TAG, "Print cancelled: " + job);
+    }
+  };
 
-        Thread.sleep(500);
-        segmentDisplay.display(i);
-        Thread.sleep(500);
+  private final Countdown.Listener mCountdownListener = new Countdown.Listener() {
+    @Override public void onTick(int secondsLeft) {
+      try {
+        if (segmentDisplay != null) {
+          segmentDisplay.display(secondsLeft);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
       }
-      segmentDisplay.clear();
-      mCamera.takePicture();
-    } catch (IOException | InterruptedException e) {
+    }
+
+    @Override public void onFinished() {
+      mTracer.mark(LatencyTracer.Stage.COUNTDOWN_DONE);
+      clearDisplay();
+      mCameraHandler.post(new Runnable() {
+        @Override public void run() {
+          mCamera.takePicture();
+        }
+      });
+    }
+
+    @Override public void onCancelled() {
+      Log.d(TAG, "Countdown cancelled");
+      clearDisplay();
+    }
+  };
+
+  private void clearDisplay() {
+    try {
+      if (segmentDisplay != null) {
+        segmentDisplay.clear();
+      }
+    } catch (IOException e) {
       e.printStackTrace();
     }
   }
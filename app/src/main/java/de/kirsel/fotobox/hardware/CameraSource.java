@@ -0,0 +1,18 @@
+package de.kirsel.fotobox.hardware;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Anything that delivers JPEG pictures on request.
+ */
+public interface CameraSource {
+
+  interface Callback {
+    /**
+     * A new picture is available. The buffer is only valid until this method returns.
+     */
+    void onJpeg(ByteBuffer jpeg);
+  }
+
+  void takePicture();
+}
@@ -0,0 +1,124 @@
+package de.kirsel.fotobox.hardware;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Builds ESC/POS commands into immutable {@link Segment}s. A segment is encoded once and can then be
+ * added to any number of {@link PrintJob}s without copying, which is what static content like
+ * headers, footers and logos should be.
+ */
+public final class EscPos {
+  // Dot rows of one line of text in the default font.
+  public static final int TEXT_LINE_DOTS = 24;
+
+  private static final byte ESC = 0x1B;
+  private static final byte LF = 0x0A;
+  private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+  private EscPos() {
+  }
+
+  /**
+   * Encoded commands and the number of dot rows the printer burns for them.
+   */
+  public static final class Segment {
+    private final ByteBuffer mData;
+    public final int dotRows;
+
+    Segment(ByteBuffer data, int dotRows) {
+      mData = data.asReadOnlyBuffer();
+      this.dotRows = dotRows;
+    }
+
+    /**
+     * A view of the commands with its own position, safe to hand out to several writers.
+     */
+    public ByteBuffer data() {
+      return mData.duplicate();
+    }
+
+    public int size() {
+      return mData.remaining();
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Wrap already encoded commands, like raster bands, without copying them. The array must not be
+   * changed afterwards.
+   */
+  public static Segment wrap(byte[] data, int offset, int length, int dotRows) {
+    return new Segment(ByteBuffer.wrap(data, offset, length).slice(), dotRows);
+  }
+
+  public static final class Builder {
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private int mDotRows;
+
+    private Builder() {
+    }
+
+    public Builder initialize() {
+      return command(ESC, 0x40);
+    }
+
+    /**
+     * Heating settings, see the printer manual for ESC 7.
+     */
+    public Builder heating(int maxHeatingDots, int heatTime, int heatInterval) {
+      return command(ESC, 0x37, maxHeatingDots, heatTime, heatInterval);
+    }
+
+    /**
+     * A line of text followed by a line feed.
+     */
+    public Builder line(String text) {
+      byte[] bytes = text.getBytes(CHARSET);
+      mOutput.write(bytes, 0, bytes.length);
+      mOutput.write(LF);
+      mDotRows += TEXT_LINE_DOTS;
+      return this;
+    }
+
+    /**
+     * Feed the paper by the given number of text lines.
+     */
+    public Builder feed(int lines) {
+      if (lines <= 1) {
+        mOutput.write(LF);
+      } else {
+        command(ESC, 0x64, lines);
+      }
+      mDotRows += Math.max(1, lines) * TEXT_LINE_DOTS;
+      return this;
+    }
+
+    public Builder command(int... bytes) {
+      for (int b : bytes) {
+        mOutput.write(b);
+      }
+      return this;
+    }
+
+    /**
+     * Encoded raster data that burns the given number of dot rows.
+     */
+    public Builder raster(ByteBuffer data, int dotRows) {
+      ByteBuffer source = data.duplicate();
+      while (source.hasRemaining()) {
+        mOutput.write(source.get());
+      }
+      mDotRows += dotRows;
+      return this;
+    }
+
+    public Segment build() {
+      return new Segment(ByteBuffer.wrap(mOutput.toByteArray()), mDotRows);
+    }
+  }
+}
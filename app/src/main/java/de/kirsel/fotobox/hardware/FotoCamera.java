@@ -26,10 +26,14 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
+import de.kirsel.fotobox.utilities.LatencyTracer;
+import java.util.Arrays;
 import java.util.Collections;
 
 import static android.content.Context.CAMERA_SERVICE;
@@ -37,12 +41,17 @@ import static android.content.Context.CAMERA_SERVICE;
 /**
  * Helper class to deal with methods to deal with images from the camera.
  */
-public class FotoCamera {
+public class FotoCamera implements CameraSource {
   private static final String TAG = FotoCamera.class.getSimpleName();
 
   private static final int IMAGE_WIDTH = 8000;
   private static final int IMAGE_HEIGHT = 6000;
-  private static final int MAX_IMAGES = 1;
+  // Extra images the reader may hold while a burst is being handed off to storage.
+  private static final int MAX_IMAGES_EXTRA = 1;
+  // Low resolution stream that keeps AE/AWB converged while the session is kept alive.
+  private static final int PREVIEW_WIDTH = 640;
+  private static final int PREVIEW_HEIGHT = 480;
+  private static final int MAX_PREVIEW_IMAGES = 2;
 
   private CameraDevice mCameraDevice;
 
@@ -53,6 +62,27 @@ public class FotoCamera {
    */
   private ImageReader mImageReader;
 
+  /**
+   * An {@link ImageReader} for the low resolution repeating request, its frames are dropped right away.
+   */
+  private ImageReader mPreviewReader;
+
+  private Handler mBackgroundHandler;
+  private ImageReader.OnImageAvailableListener mImageAvailableListener;
+
+  // Keep one capture session open between shots instead of creating a new one per picture.
+  private boolean mKeepSessionAlive = false;
+  private boolean mSessionPending = false;
+  private boolean mCapturePending = false;
+  private boolean mPreviewRequested = false;
+  private boolean mExposureLocked = false;
+
+  // Number of stills taken per takePicture(), e.g. 4 for a photo strip.
+  private int mBurstSize = 1;
+
+  private long mCaptureStartTime;
+  private long mLastCaptureLatency = -1;
+
   // Lazy-loaded singleton, so only one instance of the camera is created.
   private FotoCamera() {
   }
@@ -65,6 +95,22 @@ public class FotoCamera {
     return InstanceHolder.mCamera;
   }
 
+  /**
+   * Initialize the camera device, delivering every JPEG to the callback on the background thread.
+   */
+  public void initializeCamera(Context context, Handler backgroundHandler, final CameraSource.Callback callback) {
+    initializeCamera(context, backgroundHandler, new ImageReader.OnImageAvailableListener() {
+      @Override public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        try {
+          callback.onJpeg(image.getPlanes()[0].getBuffer());
+        } finally {
+          image.close();
+        }
+      }
+    });
+  }
+
   /**
    * Initialize the camera device
    */
@@ -85,9 +131,15 @@ public class FotoCamera {
     String id = camIds[0];
     Log.d(TAG, "Using camera id " + id);
 
+    mBackgroundHandler = backgroundHandler;
+    mImageAvailableListener = imageAvailableListener;
+
     // Initialize the image processor
-    mImageReader = ImageReader.newInstance(IMAGE_WIDTH, IMAGE_HEIGHT, ImageFormat.JPEG, MAX_IMAGES);
-    mImageReader.setOnImageAvailableListener(imageAvailableListener, backgroundHandler);
+    mImageReader = ImageReader.newInstance(IMAGE_WIDTH, IMAGE_HEIGHT, ImageFormat.JPEG, mBurstSize + MAX_IMAGES_EXTRA);
+    mImageReader.setOnImageAvailableListener(mLatencyListener, backgroundHandler);
+
+    mPreviewReader = ImageReader.newInstance(PREVIEW_WIDTH, PREVIEW_HEIGHT, ImageFormat.YUV_420_888, MAX_PREVIEW_IMAGES);
+    mPreviewReader.setOnImageAvailableListener(mPreviewListener, backgroundHandler);
 
     // Open the camera resource
     try {
@@ -122,23 +174,146 @@ public class FotoCamera {
     }
   };
 
+  /**
+   * Records the time until the first byte of a still capture is available, then hands the image on.
+   */
+  private final ImageReader.OnImageAvailableListener mLatencyListener = new ImageReader.OnImageAvailableListener() {
+    @Override public void onImageAvailable(ImageReader reader) {
+      LatencyTracer.getInstance().mark(LatencyTracer.Stage.IMAGE_AVAILABLE);
+      if (mCaptureStartTime > 0) {
+        mLastCaptureLatency = SystemClock.elapsedRealtime() - mCaptureStartTime;
+        mCaptureStartTime = 0;
+        Log.d(TAG, "Capture to first byte: " + mLastCaptureLatency + " ms");
+      }
+      mImageAvailableListener.onImageAvailable(reader);
+    }
+  };
+
+  private final ImageReader.OnImageAvailableListener mPreviewListener = new ImageReader.OnImageAvailableListener() {
+    @Override public void onImageAvailable(ImageReader reader) {
+      Image image = reader.acquireLatestImage();
+      if (image != null) {
+        image.close();
+      }
+    }
+  };
+
+  /**
+   * Keep the capture session open between pictures. Use {@link #startPreview()} to warm it up before
+   * {@link #takePicture()}.
+   */
+  public void setKeepSessionAlive(boolean keepSessionAlive) {
+    mKeepSessionAlive = keepSessionAlive;
+  }
+
+  /**
+   * Take this many stills in one burst on every {@link #takePicture()}. Has to be called before
+   * {@link #initializeCamera}, as it sizes the image queue.
+   */
+  public void setBurstSize(int burstSize) {
+    mBurstSize = Math.max(1, burstSize);
+  }
+
+  /**
+   * Milliseconds between the last {@link #takePicture()} and its image becoming available, or -1.
+   */
+  public long getLastCaptureLatency() {
+    return mLastCaptureLatency;
+  }
+
+  /**
+   * Open the persistent capture session and start the low resolution repeating request, so exposure
+   * is already converged when {@link #takePicture()} is called.
+   */
+  public void startPreview() {
+    if (!mKeepSessionAlive) {
+      return;
+    }
+    mPreviewRequested = true;
+    if (mCaptureSession != null) {
+      startRepeatingRequest();
+    } else {
+      createSession();
+    }
+  }
+
   /**
    * Begin a still image capture
    */
-  public void takePicture() {
+  @Override public void takePicture() {
     if (mCameraDevice == null) {
       Log.w(TAG, "Cannot capture image. Camera not initialized.");
       return;
     }
+    mCaptureStartTime = SystemClock.elapsedRealtime();
+
+    if (mCaptureSession != null) {
+      triggerImageCapture();
+    } else {
+      mCapturePending = true;
+      createSession();
+    }
+  }
+
+  private void createSession() {
+    if (mCameraDevice == null || mSessionPending) {
+      return;
+    }
 
     // Here, we create a CameraCaptureSession for capturing still images.
     try {
-      mCameraDevice.createCaptureSession(Collections.singletonList(mImageReader.getSurface()), mSessionCallback, null);
+      mSessionPending = true;
+      if (mKeepSessionAlive) {
+        mCameraDevice.createCaptureSession(Arrays.asList(mImageReader.getSurface(), mPreviewReader.getSurface()),
+            mSessionCallback, mBackgroundHandler);
+      } else {
+        mCameraDevice.createCaptureSession(Collections.singletonList(mImageReader.getSurface()), mSessionCallback,
+            mBackgroundHandler);
+      }
     } catch (CameraAccessException cae) {
+      mSessionPending = false;
       Log.d(TAG, "access exception while preparing pic", cae);
     }
   }
 
+  /**
+   * Run the AF/AE pre-capture sequence in the warmed up session and keep the exposure locked until the
+   * next still capture.
+   */
+  public void lockFocusAndExposure() {
+    if (mCaptureSession == null || mCameraDevice == null) {
+      Log.d(TAG, "No session to lock exposure in.");
+      return;
+    }
+    try {
+      final CaptureRequest.Builder triggerBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+      triggerBuilder.addTarget(mPreviewReader.getSurface());
+      triggerBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+      triggerBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
+      triggerBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+          CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+      mCaptureSession.capture(triggerBuilder.build(), null, mBackgroundHandler);
+      mExposureLocked = true;
+      startRepeatingRequest();
+      Log.d(TAG, "Focus and exposure locked.");
+    } catch (CameraAccessException cae) {
+      Log.d(TAG, "camera exception while locking exposure", cae);
+    }
+  }
+
+  private void startRepeatingRequest() {
+    try {
+      final CaptureRequest.Builder previewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+      previewBuilder.addTarget(mPreviewReader.getSurface());
+      previewBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+      previewBuilder.set(CaptureRequest.CONTROL_AE_LOCK, mExposureLocked);
+      mCaptureSession.setRepeatingRequest(previewBuilder.build(), null, mBackgroundHandler);
+      Log.d(TAG, "Preview started.");
+    } catch (CameraAccessException cae) {
+      Log.d(TAG, "camera preview exception", cae);
+    }
+  }
+
   /**
    * Callback handling session state changes
    */
@@ -150,11 +325,21 @@ public class FotoCamera {
       }
 
       // When the session is ready, we start capture.
+      LatencyTracer.getInstance().mark(LatencyTracer.Stage.SESSION_CONFIGURED);
+      mSessionPending = false;
       mCaptureSession = cameraCaptureSession;
-      triggerImageCapture();
+      if (mPreviewRequested) {
+        startRepeatingRequest();
+      }
+      if (mCapturePending) {
+        mCapturePending = false;
+        triggerImageCapture();
+      }
     }
 
     @Override public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
+      mSessionPending = false;
+      mCapturePending = false;
       Log.w(TAG, "Failed to configure camera");
     }
   };
@@ -168,8 +353,14 @@ public class FotoCamera {
           mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
       captureBuilder.addTarget(mImageReader.getSurface());
       captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+      captureBuilder.set(CaptureRequest.CONTROL_AE_LOCK, mExposureLocked);
       Log.d(TAG, "Session initialized.");
-      mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, null);
+      final CaptureRequest request = captureBuilder.build();
+      if (mBurstSize > 1) {
+        mCaptureSession.captureBurst(Collections.nCopies(mBurstSize, request), mCaptureCallback, mBackgroundHandler);
+      } else {
+        mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
+      }
     } catch (CameraAccessException cae) {
       Log.d(TAG, "camera capture exception");
     }
@@ -187,7 +378,25 @@ public class FotoCamera {
 
     @Override
     public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
-      if (session != null) {
+      Log.d(TAG, "Capture completed");
+      LatencyTracer.getInstance().mark(LatencyTracer.Stage.CAPTURE_COMPLETED);
+    }
+
+    @Override public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId, long frameNumber) {
+      // Only tear down once every frame of a burst is done.
+      if (session == null) {
+        return;
+      }
+      if (mKeepSessionAlive) {
+        // Keep the session, but stop streaming until the next countdown.
+        mPreviewRequested = false;
+        mExposureLocked = false;
+        try {
+          session.stopRepeating();
+        } catch (CameraAccessException cae) {
+          Log.d(TAG, "camera exception while stopping preview", cae);
+        }
+      } else {
         session.close();
         mCaptureSession = null;
         Log.d(TAG, "CaptureSession closed");
@@ -199,6 +408,10 @@ public class FotoCamera {
    * Close the camera resources
    */
   public void shutDown() {
+    if (mCaptureSession != null) {
+      mCaptureSession.close();
+      mCaptureSession = null;
+    }
     if (mCameraDevice != null) {
       mCameraDevice.close();
     }
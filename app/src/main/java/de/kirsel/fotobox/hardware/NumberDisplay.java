@@ -0,0 +1,15 @@
+package de.kirsel.fotobox.hardware;
+
+import java.io.IOException;
+
+/**
+ * Display for the countdown.
+ */
+public interface NumberDisplay {
+
+  void display(int number) throws IOException;
+
+  void clear() throws IOException;
+
+  void close() throws IOException;
+}
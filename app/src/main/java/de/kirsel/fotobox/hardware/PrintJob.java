@@ -0,0 +1,172 @@
+package de.kirsel.fotobox.hardware;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything one print needs, already encoded into printer commands. The commands are kept in
+ * segments that end on band boundaries, which is where a job can be cancelled without leaving the
+ * printer in the middle of a command. A segment can be gathered from several shared
+ * {@link EscPos.Segment}s, which are not copied.
+ *
+ * <p>A job can be submitted while it is still being encoded: after {@link #open()} the spooler waits
+ * for more segments until {@link #seal()} is called, so the printer starts on the first band while the
+ * rest of the photo is encoded.
+ */
+public class PrintJob {
+  public static final int PRIORITY_LOW = 0;
+  public static final int PRIORITY_NORMAL = 5;
+  public static final int PRIORITY_HIGH = 10;
+
+  /**
+   * Called on the spooler thread.
+   */
+  public interface Listener {
+    /**
+     * @param segmentCount segments of the job so far, more may follow while it is open
+     */
+    void onProgress(PrintJob job, int segmentsDone, int segmentCount);
+
+    void onFinished(PrintJob job);
+
+    void onCancelled(PrintJob job);
+  }
+
+  private final String mName;
+  private final int mPriority;
+  private final List<ByteBuffer[]> mSegments = new ArrayList<>();
+  private final List<Integer> mDotRows = new ArrayList<>();
+  private long mByteCount;
+  private Listener mListener;
+  private volatile boolean mCancelled;
+  private boolean mOpen;
+  // Order of submission, so jobs of the same priority print first come, first served.
+  long mSequence;
+
+  public PrintJob(String name, int priority) {
+    mName = name;
+    mPriority = priority;
+  }
+
+  /**
+   * Append encoded commands that make the printer burn {@code dotRows} rows of dots.
+   */
+  public synchronized PrintJob add(ByteBuffer commands, int dotRows) {
+    mSegments.add(new ByteBuffer[] { commands });
+    mDotRows.add(dotRows);
+    mByteCount += commands.remaining();
+    notifyAll();
+    return this;
+  }
+
+  /**
+   * Append pre-encoded commands as one segment, written to the printer in a single gathering write.
+   */
+  public synchronized PrintJob add(EscPos.Segment... segments) {
+    ByteBuffer[] data = new ByteBuffer[segments.length];
+    int dotRows = 0;
+    for (int i = 0; i < segments.length; i++) {
+      data[i] = segments[i].data();
+      dotRows += segments[i].dotRows;
+      mByteCount += segments[i].size();
+    }
+    mSegments.add(data);
+    mDotRows.add(dotRows);
+    notifyAll();
+    return this;
+  }
+
+  /**
+   * Append each of the pre-encoded segments on its own, like the bands of a logo.
+   */
+  public synchronized PrintJob addAll(List<EscPos.Segment> segments) {
+    for (EscPos.Segment segment : segments) {
+      add(segment);
+    }
+    return this;
+  }
+
+  public PrintJob setListener(Listener listener) {
+    mListener = listener;
+    return this;
+  }
+
+  /**
+   * More segments will be added after the job was submitted, until {@link #seal()} is called.
+   */
+  public synchronized PrintJob open() {
+    mOpen = true;
+    return this;
+  }
+
+  /**
+   * No more segments follow, the job is finished once the ones it has are printed.
+   */
+  public synchronized void seal() {
+    mOpen = false;
+    notifyAll();
+  }
+
+  /**
+   * Stop the job at the next band boundary, or drop it if it didn't start yet.
+   */
+  public void cancel() {
+    mCancelled = true;
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  public int getPriority() {
+    return mPriority;
+  }
+
+  public synchronized int getSegmentCount() {
+    return mSegments.size();
+  }
+
+  public synchronized long getByteCount() {
+    return mByteCount;
+  }
+
+  /**
+   * The segment at {@code index}, waiting for it while the job is open.
+   *
+   * @return views of the segment's buffers, or null if the job has no more segments or was cancelled
+   */
+  synchronized ByteBuffer[] awaitSegment(int index) throws InterruptedException {
+    while (index >= mSegments.size() && mOpen && !mCancelled) {
+      wait();
+    }
+    if (index >= mSegments.size() || mCancelled) {
+      return null;
+    }
+    ByteBuffer[] segment = mSegments.get(index);
+    ByteBuffer[] views = new ByteBuffer[segment.length];
+    for (int i = 0; i < segment.length; i++) {
+      views[i] = segment[i].duplicate();
+    }
+    return views;
+  }
+
+  synchronized int getDotRows(int index) {
+    return mDotRows.get(index);
+  }
+
+  Listener getListener() {
+    return mListener;
+  }
+
+  @Override public synchronized String toString() {
+    return mName + " (" + mSegments.size() + " segments, " + mByteCount + " bytes)";
+  }
+}
@@ -0,0 +1,139 @@
+package de.kirsel.fotobox.hardware;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Prints {@link PrintJob}s one after the other on its own thread, highest priority first. Callers
+ * only encode and submit, they never wait for the printer, and two jobs can't interleave because
+ * only the spooler writes to the printer.
+ */
+public class PrintSpooler {
+  private static final String TAG = PrintSpooler.class.getSimpleName();
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  private final UartWriter mWriter;
+  private final PriorityBlockingQueue<PrintJob> mQueue =
+      new PriorityBlockingQueue<>(INITIAL_CAPACITY, new Comparator<PrintJob>() {
+        @Override public int compare(PrintJob a, PrintJob b) {
+          if (a.getPriority() != b.getPriority()) {
+            return a.getPriority() > b.getPriority() ? -1 : 1;
+          }
+          return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+        }
+      });
+  private final Thread mThread;
+  private long mSequence;
+  private int mMaxDepth;
+  private int mPrinted;
+  private int mCancelled;
+  private long mPrintedBytes;
+
+  public PrintSpooler(UartWriter writer) {
+    mWriter = writer;
+    mThread = new Thread(mSpoolLoop, "PrintSpooler");
+    mThread.start();
+  }
+
+  public PrintJob submit(PrintJob job) {
+    synchronized (this) {
+      job.mSequence = mSequence++;
+      mQueue.add(job);
+      mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+    }
+    Log.d(TAG, "Queued " + job + ", " + getQueueDepth() + " jobs waiting");
+    return job;
+  }
+
+  /**
+   * Jobs waiting to be printed, not counting the one being printed.
+   */
+  public int getQueueDepth() {
+    return mQueue.size();
+  }
+
+  /**
+   * Bytes of all jobs waiting to be printed.
+   */
+  public long getQueuedBytes() {
+    long bytes = 0;
+    for (PrintJob job : mQueue) {
+      bytes += job.getByteCount();
+    }
+    return bytes;
+  }
+
+  public synchronized void logStats() {
+    Log.i(TAG, "Printed " + mPrinted + " jobs (" + mPrintedBytes + " bytes), cancelled " + mCancelled + ", waiting "
+        + getQueueDepth() + ", most waiting " + mMaxDepth);
+  }
+
+  public void close() {
+    mThread.interrupt();
+    for (PrintJob job : mQueue) {
+      job.cancel();
+    }
+    mQueue.clear();
+  }
+
+  private final Runnable mSpoolLoop = new Runnable() {
+    @Override public void run() {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          print(mQueue.take());
+        }
+      } catch (InterruptedException e) {
+        Log.d(TAG, "Print spooler stopped");
+      }
+    }
+  };
+
+  private void print(PrintJob job) {
+    PrintJob.Listener listener = job.getListener();
+    long bytes = 0;
+    try {
+      ByteBuffer[] data;
+      // An open job is still being encoded, its next segment is waited for.
+      for (int segment = 0; (data = job.awaitSegment(segment)) != null; segment++) {
+        for (ByteBuffer buffer : data) {
+          bytes += buffer.remaining();
+        }
+        mWriter.write(data, job.getDotRows(segment));
+        if (listener != null) {
+          listener.onProgress(job, segment + 1, job.getSegmentCount());
+        }
+      }
+      if (!job.isCancelled()) {
+        // Finished means written to the UART, not just waiting in the ring buffer.
+        mWriter.drain();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Printing " + job + " failed", e);
+      job.cancel();
+    } catch (InterruptedException e) {
+      // The spooler is closing, the loop stops after this job.
+      job.cancel();
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      mPrintedBytes += bytes;
+      if (job.isCancelled()) {
+        mCancelled++;
+      } else {
+        mPrinted++;
+      }
+    }
+    if (listener != null) {
+      if (job.isCancelled()) {
+        listener.onCancelled(job);
+      } else {
+        listener.onFinished(job);
+      }
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package de.kirsel.fotobox.hardware;
+
+import java.io.IOException;
+
+/**
+ * Byte channel to the printer, e.g. a UART.
+ */
+public interface PrinterTransport {
+
+  /**
+   * Write up to {@code length} bytes from the start of the buffer.
+   *
+   * @return the number of bytes actually written
+   */
+  int write(byte[] buffer, int length) throws IOException;
+}
@@ -0,0 +1,29 @@
+package de.kirsel.fotobox.hardware;
+
+import com.google.android.things.contrib.driver.tm1637.NumericDisplay;
+import java.io.IOException;
+
+/**
+ * The TM1637 seven segment display of the fotobox.
+ */
+public class SegmentDisplay implements NumberDisplay {
+  private final NumericDisplay mDisplay;
+
+  public SegmentDisplay(String dataPin, String clockPin) throws IOException {
+    mDisplay = new NumericDisplay(dataPin, clockPin);
+    mDisplay.setBrightness(1.0f);
+    mDisplay.setColonEnabled(false);
+  }
+
+  @Override public void display(int number) throws IOException {
+    mDisplay.display(number);
+  }
+
+  @Override public void clear() throws IOException {
+    mDisplay.clear();
+  }
+
+  @Override public void close() throws IOException {
+    mDisplay.close();
+  }
+}
@@ -0,0 +1,265 @@
+package de.kirsel.fotobox.hardware;
+
+import android.util.Log;
+import de.kirsel.fotobox.utilities.LatencyTracer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead staging area on the internal flash. Every capture is written here first and fsynced, then
+ * copied to the USB drive by {@link UsbSync}. An append-only index records which files were staged
+ * ({@code A name size}), which already made it to the drive ({@code S name}) and which were put aside
+ * because they can't be read ({@code Q name}), so the backlog survives a restart and no shot is lost
+ * while the drive is slow or missing.
+ */
+public class StagingStore implements StorageSink {
+  private static final String TAG = StagingStore.class.getSimpleName();
+
+  private static final String INDEX_NAME = "index.log";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String QUARANTINE_NAME = "quarantine";
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final File mDir;
+  private final File mIndex;
+  // Staged files not yet on the drive, oldest first, with their size.
+  private final LinkedHashMap<String, Long> mPending = new LinkedHashMap<>();
+  private long mLastName;
+  private Runnable mOnStagedListener;
+
+  public StagingStore(File dir) {
+    mDir = dir;
+    mIndex = new File(dir, INDEX_NAME);
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      Log.e(TAG, "Could not create staging directory " + mDir);
+    }
+    replayIndex();
+  }
+
+  /**
+   * Called on the writing thread after each capture was staged.
+   */
+  public void setOnStagedListener(Runnable listener) {
+    mOnStagedListener = listener;
+  }
+
+  @Override public boolean saveJpeg(ByteBuffer jpeg) {
+    // Epoch millis like the drive uses, but never the same name twice.
+    // The Pi has no real time clock, after a restart the time can repeat, so taken names are skipped.
+    long name;
+    synchronized (this) {
+      name = Math.max(System.currentTimeMillis(), mLastName + 1);
+      while (new File(mDir, name + ".JPEG").exists()) {
+        name++;
+      }
+      mLastName = name;
+    }
+    LatencyTracer.getInstance().attach(name + ".JPEG");
+    return saveJpeg(name + ".JPEG", jpeg);
+  }
+
+  @Override public boolean saveJpeg(String name, ByteBuffer jpeg) {
+    File target = new File(mDir, name);
+    if (target.exists()) {
+      Log.e(TAG, "Not overwriting staged " + name);
+      return false;
+    }
+    File temp = new File(mDir, name + TEMP_SUFFIX);
+    long size;
+    try (FileChannel channel = new FileOutputStream(temp).getChannel()) {
+      ByteBuffer source = jpeg.duplicate();
+      size = source.remaining();
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      Log.e(TAG, "Could not stage " + name, e);
+      temp.delete();
+      return false;
+    }
+    if (!temp.renameTo(target)) {
+      Log.e(TAG, "Could not rename staged " + name);
+      temp.delete();
+      return false;
+    }
+    synchronized (this) {
+      if (!appendIndex("A " + name + " " + size + "\n")) {
+        return false;
+      }
+      mPending.put(name, size);
+    }
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.STAGED, name);
+    Log.d(TAG, "Staged " + name + ", backlog " + getBacklogCount());
+    if (mOnStagedListener != null) {
+      mOnStagedListener.run();
+    }
+    return true;
+  }
+
+  /**
+   * Up to {@code max} staged file names that are not on the drive yet, oldest first.
+   */
+  public synchronized List<String> nextBatch(int max) {
+    List<String> batch = new ArrayList<>(Math.min(max, mPending.size()));
+    for (String name : mPending.keySet()) {
+      if (batch.size() == max) {
+        break;
+      }
+      batch.add(name);
+    }
+    return batch;
+  }
+
+  /**
+   * The staged file, or null if it already made it to the drive.
+   */
+  public synchronized File getFile(String name) {
+    return mPending.containsKey(name) ? new File(mDir, name) : null;
+  }
+
+  /**
+   * Map a staged file read-only, or null if it can't be read.
+   */
+  public ByteBuffer read(String name) {
+    try (FileChannel channel = new FileInputStream(new File(mDir, name)).getChannel()) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      Log.e(TAG, "Could not read staged " + name, e);
+      return null;
+    }
+  }
+
+  /**
+   * Record that the files are on the drive and delete them from the flash. Once nothing is pending
+   * the index is started over, so it never grows beyond one backlog.
+   */
+  public synchronized void markSynced(List<String> names) {
+    if (names.isEmpty()) {
+      return;
+    }
+    StringBuilder lines = new StringBuilder();
+    for (String name : names) {
+      lines.append("S ").append(name).append('\n');
+    }
+    if (!appendIndex(lines.toString())) {
+      return;
+    }
+    for (String name : names) {
+      mPending.remove(name);
+      if (!new File(mDir, name).delete()) {
+        Log.w(TAG, "Could not delete synced " + name);
+      }
+    }
+    if (mPending.isEmpty() && !mIndex.delete()) {
+      Log.w(TAG, "Could not reset staging index");
+    }
+  }
+
+  /**
+   * Take a file that keeps failing to read out of the backlog without deleting it. It is moved to the
+   * {@value #QUARANTINE_NAME} directory, where it can still be pulled off by hand.
+   */
+  public synchronized void quarantine(String name) {
+    if (!mPending.containsKey(name) || !appendIndex("Q " + name + "\n")) {
+      return;
+    }
+    mPending.remove(name);
+    File quarantine = new File(mDir, QUARANTINE_NAME);
+    quarantine.mkdirs();
+    if (!new File(mDir, name).renameTo(new File(quarantine, name))) {
+      // Still out of the backlog, the file just stays where it is until the next restart adopts it again.
+      Log.w(TAG, "Could not move " + name + " to " + quarantine);
+    }
+    Log.w(TAG, "Quarantined unreadable capture " + name);
+    if (mPending.isEmpty() && !mIndex.delete()) {
+      Log.w(TAG, "Could not reset staging index");
+    }
+  }
+
+  public synchronized int getBacklogCount() {
+    return mPending.size();
+  }
+
+  public synchronized long getBacklogBytes() {
+    long bytes = 0;
+    for (long size : mPending.values()) {
+      bytes += size;
+    }
+    return bytes;
+  }
+
+  private boolean appendIndex(String lines) {
+    try (FileChannel channel = new FileOutputStream(mIndex, true).getChannel()) {
+      channel.write(ByteBuffer.wrap(lines.getBytes(ASCII)));
+      channel.force(false);
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not write staging index", e);
+      return false;
+    }
+  }
+
+  private void replayIndex() {
+    if (mIndex.exists()) {
+      try (BufferedReader reader = new BufferedReader(new FileReader(mIndex))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] parts = line.split(" ");
+          if (parts.length == 3 && parts[0].equals("A")) {
+            mPending.put(parts[1], Long.parseLong(parts[2]));
+          } else if (parts.length == 2 && (parts[0].equals("S") || parts[0].equals("Q"))) {
+            mPending.remove(parts[1]);
+          }
+        }
+      } catch (IOException | NumberFormatException e) {
+        // A torn last line is expected after a power cut, everything before it still counts.
+        Log.w(TAG, "Staging index ends early", e);
+      }
+    }
+
+    // Drop entries whose file is gone and leftovers of interrupted writes.
+    for (Map.Entry<String, Long> entry : new ArrayList<>(mPending.entrySet())) {
+      if (!new File(mDir, entry.getKey()).isFile()) {
+        mPending.remove(entry.getKey());
+      }
+    }
+    // A power cut right after the rename leaves a complete capture the index doesn't know yet.
+    File[] files = mDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(TEMP_SUFFIX)) {
+          file.delete();
+        } else if (file.isFile() && !name.equals(INDEX_NAME) && !mPending.containsKey(name)
+            && appendIndex("A " + name + " " + file.length() + "\n")) {
+          Log.w(TAG, "Adopting untracked capture " + name);
+          mPending.put(name, file.length());
+        }
+      }
+    }
+
+    // Continue after the newest name, in case the clock starts over.
+    for (String name : mPending.keySet()) {
+      int digits = 0;
+      while (digits < name.length() && Character.isDigit(name.charAt(digits))) {
+        digits++;
+      }
+      if (digits > 0 && digits < 19) {
+        mLastName = Math.max(mLastName, Long.parseLong(name.substring(0, digits)));
+      }
+    }
+    Log.d(TAG, "Staging backlog after restart: " + mPending.size());
+  }
+}
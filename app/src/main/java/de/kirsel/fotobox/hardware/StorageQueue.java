@@ -0,0 +1,167 @@
+package de.kirsel.fotobox.hardware;
+
+import android.util.Log;
+import de.kirsel.fotobox.utilities.BufferPool;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Write-behind queue for captured JPEGs. Captures are queued by the camera thread and written to the
+ * {@link StorageSink} on the storage thread, so a slow USB drive never holds up the next capture. A
+ * capture the sink can't take is spilled to the internal flash and retried with the next capture.
+ */
+public class StorageQueue {
+  private static final String TAG = StorageQueue.class.getSimpleName();
+
+  /**
+   * What to do with a new capture when the queue is full.
+   */
+  public enum Policy {
+    // Wait on the calling thread until the storage thread made some room.
+    BLOCK,
+    // Throw away the oldest pending capture.
+    DROP_OLDEST,
+    // Park the capture on the internal flash and copy it to the drive once the queue is empty.
+    SPILL
+  }
+
+  private final StorageSink mStorage;
+  private final Executor mStorageExecutor;
+  private final File mSpillDir;
+  private final Policy mPolicy;
+  private final LinkedBlockingDeque<ByteBuffer> mQueue;
+  private final BufferPool mBufferPool = BufferPool.getInstance();
+
+  /**
+   * @param storageExecutor runs the writes, has to execute them one at a time
+   */
+  public StorageQueue(StorageSink storage, Executor storageExecutor, File spillDir, int capacity, Policy policy) {
+    mStorage = storage;
+    mStorageExecutor = storageExecutor;
+    mSpillDir = spillDir;
+    mPolicy = policy;
+    mQueue = new LinkedBlockingDeque<>(capacity);
+  }
+
+  /**
+   * Queue a JPEG for saving. The bytes are copied, so the caller may release the buffer right away.
+   */
+  public void enqueue(ByteBuffer jpeg) {
+    ByteBuffer copy = mBufferPool.acquireByteBuffer(jpeg.remaining());
+    copy.put(jpeg.duplicate());
+    copy.flip();
+
+    if (!mQueue.offerLast(copy)) {
+      switch (mPolicy) {
+        case BLOCK:
+          try {
+            mQueue.putLast(copy);
+          } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for the storage queue", e);
+            mBufferPool.releaseByteBuffer(copy);
+            return;
+          }
+          break;
+        case DROP_OLDEST:
+          while (!mQueue.offerLast(copy)) {
+            ByteBuffer dropped = mQueue.pollFirst();
+            if (dropped != null) {
+              mBufferPool.releaseByteBuffer(dropped);
+              Log.w(TAG, "Storage queue full, dropped oldest capture");
+            }
+          }
+          break;
+        case SPILL:
+          spill(copy);
+          mBufferPool.releaseByteBuffer(copy);
+          break;
+      }
+    }
+    mStorageExecutor.execute(mDrain);
+  }
+
+  /**
+   * Number of captures that are not on the drive yet.
+   */
+  public int getPendingCount() {
+    String[] spilled = mSpillDir.list();
+    return mQueue.size() + (spilled == null ? 0 : spilled.length);
+  }
+
+  private final Runnable mDrain = new Runnable() {
+    @Override public void run() {
+      ByteBuffer jpeg;
+      boolean failed = false;
+      while ((jpeg = mQueue.pollFirst()) != null) {
+        // Once the sink failed, the rest goes straight to the flash instead of failing one by one.
+        if (failed || !mStorage.saveJpeg(jpeg)) {
+          failed = true;
+          spill(jpeg);
+        }
+        mBufferPool.releaseByteBuffer(jpeg);
+      }
+      if (!failed) {
+        drainSpilled();
+      }
+    }
+  };
+
+  /**
+   * Park the capture on the flash until {@link #drainSpilled()} gets it to the sink.
+   *
+   * @return false if it couldn't be written and is lost
+   */
+  private boolean spill(ByteBuffer jpeg) {
+    if (!mSpillDir.isDirectory() && !mSpillDir.mkdirs()) {
+      Log.e(TAG, "Could not create spill directory " + mSpillDir + ", capture lost");
+      return false;
+    }
+    File file = new File(mSpillDir, System.currentTimeMillis() + "_" + System.nanoTime() + ".JPEG");
+    try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+      ByteBuffer source = jpeg.duplicate();
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+      Log.d(TAG, "Spilled capture to " + file.getName());
+      return true;
+    } catch (IOException e) {
+      // A partial file would later be copied to the drive as a broken photo.
+      Log.e(TAG, "Could not spill capture, it is lost", e);
+      file.delete();
+      return false;
+    }
+  }
+
+  private void drainSpilled() {
+    File[] files = mSpillDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      // New captures go first, the spilled ones are only moved while nothing else is pending.
+      if (!mQueue.isEmpty()) {
+        return;
+      }
+      try (FileChannel channel = new FileInputStream(file).getChannel()) {
+        ByteBuffer jpeg = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (!mStorage.saveJpeg(jpeg)) {
+          return;
+        }
+      } catch (IOException e) {
+        Log.e(TAG, "Could not read spilled capture " + file.getName(), e);
+        return;
+      }
+      if (!file.delete()) {
+        Log.w(TAG, "Could not delete spilled capture " + file.getName());
+      }
+    }
+  }
+}
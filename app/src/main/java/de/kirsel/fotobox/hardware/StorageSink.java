@@ -0,0 +1,23 @@
+package de.kirsel.fotobox.hardware;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Persistent storage for captured JPEGs.
+ */
+public interface StorageSink {
+
+  /**
+   * Write the JPEG, leaving the position of the buffer untouched.
+   *
+   * @return true if the image was stored
+   */
+  boolean saveJpeg(ByteBuffer jpeg);
+
+  /**
+   * Write the JPEG under the given file name, leaving the position of the buffer untouched.
+   *
+   * @return true if the image was stored
+   */
+  boolean saveJpeg(String name, ByteBuffer jpeg);
+}
@@ -0,0 +1,108 @@
+package de.kirsel.fotobox.hardware;
+
+import de.kirsel.fotobox.utilities.PhotoServer;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What the {@link PhotoServer} offers for download:
+ *
+ * <pre>
+ * /photo/&lt;name&gt;  the photo, from the staging area while it is not on a drive yet
+ * /thumb/&lt;name&gt;  its thumbnail from the gallery
+ * /gallery         all photos on the drives as JSON
+ * </pre>
+ *
+ * The names are the ones {@link StagingStore} gives the captures, so a link stays the same before and
+ * after the photo was copied to the drive.
+ */
+public class StorageSource implements PhotoServer.Source {
+  private static final String JPEG = "image/jpeg";
+
+  private final StagingStore mStaging;
+  private final UsbStorage mStorage;
+
+  public StorageSource(StagingStore staging, UsbStorage storage) {
+    mStaging = staging;
+    mStorage = storage;
+  }
+
+  @Override public PhotoServer.Resource find(String path) {
+    if (path.startsWith("photo/")) {
+      String name = path.substring(6);
+      File staged = mStaging.getFile(name);
+      if (staged != null && staged.length() > 0) {
+        return new StagedPhoto(name, staged);
+      }
+      return mStorage.openPhoto(name);
+    } else if (path.startsWith("thumb/")) {
+      ThumbnailIndex.Entry entry = mStorage.findThumbnail(path.substring(6));
+      ByteBuffer thumbnail = entry != null ? mStorage.readThumbnail(entry) : null;
+      return thumbnail != null ? PhotoServer.bufferResource(thumbnail, "t" + entry.path.hashCode(), JPEG) : null;
+    } else if (path.equals("gallery")) {
+      return gallery();
+    }
+    return null;
+  }
+
+  /**
+   * A photo in the staging area. The sync can copy it to the drive and delete it between the lookup
+   * and the download, then it is sent from the drive instead.
+   */
+  private class StagedPhoto implements PhotoServer.Resource {
+    private final String mName;
+    private final PhotoServer.Resource mFile;
+
+    StagedPhoto(String name, File file) {
+      mName = name;
+      mFile = PhotoServer.fileResource(file, JPEG);
+    }
+
+    @Override public long length() {
+      return mFile.length();
+    }
+
+    @Override public String etag() {
+      // Same as the drive's, so a phone that has the photo doesn't download it again after the sync.
+      return mName + "-" + mFile.length();
+    }
+
+    @Override public String contentType() {
+      return JPEG;
+    }
+
+    @Override public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+      try {
+        mFile.transferTo(offset, count, target);
+      } catch (FileNotFoundException e) {
+        PhotoServer.Resource synced = mStorage.openPhoto(mName);
+        if (synced == null || synced.length() != mFile.length()) {
+          throw new IOException("Staged " + mName + " is gone and not on a drive", e);
+        }
+        synced.transferTo(offset, count, target);
+      }
+    }
+  }
+
+  private PhotoServer.Resource gallery() {
+    List<ThumbnailIndex.Entry> entries = mStorage.getGallery();
+    StringBuilder json = new StringBuilder("[");
+    for (ThumbnailIndex.Entry entry : entries) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+      json.append(String.format(Locale.US, "{\"name\":\"%s\",\"timestamp\":%d,\"size\":%d}", entry.name,
+          entry.timestamp, entry.size));
+    }
+    json.append(']');
+    byte[] bytes = json.toString().getBytes();
+    // The gallery only ever grows, so its length is enough to tell versions apart.
+    return PhotoServer.bufferResource(ByteBuffer.wrap(bytes), "g" + entries.size() + "-" + bytes.length,
+        "application/json");
+  }
+}
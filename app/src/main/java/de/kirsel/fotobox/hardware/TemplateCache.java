@@ -0,0 +1,82 @@
+package de.kirsel.fotobox.hardware;
+
+import android.graphics.Bitmap;
+import de.kirsel.fotobox.utilities.BufferPool;
+import de.kirsel.fotobox.utilities.RasterEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoded segments of the static parts of a print, like the header text, footers and logos, so they
+ * are encoded once per event instead of once per print.
+ */
+public class TemplateCache {
+  private static final int CACHE_SIZE = 32;
+
+  private final Map<String, List<EscPos.Segment>> mCache =
+      new LinkedHashMap<String, List<EscPos.Segment>>(CACHE_SIZE, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, List<EscPos.Segment>> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+  private final RasterEncoder mEncoder = new RasterEncoder();
+
+  /**
+   * A line of text followed by a line feed.
+   */
+  public EscPos.Segment line(String text) {
+    String key = "line|" + text;
+    List<EscPos.Segment> segments = get(key);
+    if (segments == null) {
+      segments = put(key, Collections.singletonList(EscPos.builder().line(text).build()));
+    }
+    return segments.get(0);
+  }
+
+  public EscPos.Segment feed(int lines) {
+    String key = "feed|" + lines;
+    List<EscPos.Segment> segments = get(key);
+    if (segments == null) {
+      segments = put(key, Collections.singletonList(EscPos.builder().feed(lines).build()));
+    }
+    return segments.get(0);
+  }
+
+  /**
+   * The bands of an image like a logo, rasterized the first time the key is used. The image has to be
+   * at most the printer width and is printed as it is, only pure black pixels are burned.
+   */
+  public List<EscPos.Segment> image(String key, Bitmap image) {
+    key = "image|" + key;
+    List<EscPos.Segment> segments = get(key);
+    if (segments == null) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      BufferPool pool = BufferPool.getInstance();
+      int[] pixels = pool.acquireIntArray(width * height);
+      image.getPixels(pixels, 0, width, 0, 0, width, height);
+      List<EscPos.Segment> bands = new ArrayList<>();
+      synchronized (mEncoder) {
+        for (int row = 0; row < height; row += RasterEncoder.BAND_HEIGHT) {
+          bands.add(EscPos.builder().raster(mEncoder.encodeBand(pixels, width, height, row), RasterEncoder.BAND_HEIGHT)
+              .build());
+        }
+      }
+      pool.releaseIntArray(pixels);
+      segments = put(key, Collections.unmodifiableList(bands));
+    }
+    return segments;
+  }
+
+  private synchronized List<EscPos.Segment> get(String key) {
+    return mCache.get(key);
+  }
+
+  private synchronized List<EscPos.Segment> put(String key, List<EscPos.Segment> segments) {
+    mCache.put(key, segments);
+    return segments;
+  }
+}
@@ -17,42 +17,59 @@ package de.kirsel.fotobox.hardware;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Color;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.Log;
 import com.google.android.things.pio.PeripheralManagerService;
 import com.google.android.things.pio.UartDevice;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
-import java.io.ByteArrayOutputStream;
+import de.kirsel.fotobox.utilities.BandPipeline;
+import de.kirsel.fotobox.utilities.BufferPool;
+import de.kirsel.fotobox.utilities.Ditherer;
+import de.kirsel.fotobox.utilities.ImageConverter;
+import de.kirsel.fotobox.utilities.QrCodeRenderer;
+import de.kirsel.fotobox.utilities.RasterEncoder;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ThermalPrinter {
+  // Printable dots per line of the Ada 597 thermal printer.
+  public static final int DOT_WIDTH = 384;
 
-  private static final byte[] PRINTER_SELECT_BIT_IMAGE_MODE = { 0x1B, 0x2A, 33 };
   private final String TAG = "ThermalPrinter";
   // Pulled from calling PeripheralManagerService.getUartDeviceList().
   private final String UART_DEVICE_NAME = "UART0";
 
-  private final byte[] PRINTER_INITIALIZE = { 0x1B, 0x40 };
-  private final byte ESC_CHAR = 0x1B;
-  private final byte[] PRINTER_SET_LINE_SPACE_24 = new byte[] { ESC_CHAR, 0x33, 24 };
   // Slowing down the printer a little and increasing dot density, in order to make the QR
   // codes darker (they're a little faded at default settings).
-  // Bytes represent the following: (first two): Print settings.
   // Max heating dots: Units of 8 dots.  11 means 88 dots.
-  // Heating time: Units of 10 uS.  120 means 1.2 milliseconds.
+  // Heating time: Units of 10 uS.  127 means 1.27 milliseconds.
   // Heating interval: Units of 10 uS. 50 means 0.5 milliseconds.
-  private final byte[] PRINTER_DARKER_PRINTING = { 0x1B, 0x37, 11, 0x7F, 50 };
-  private final byte[] PRINTER_PRINT_AND_FEED = { 0x1B, 0x64 };
-  private final byte BYTE_LF = 0xA;
+  private static final int MAX_HEATING_DOTS = 11;
+  private static final int HEATING_TIME = 0x7F;
+  private static final int HEATING_INTERVAL = 50;
+  private static final EscPos.Segment PRINTER_CONFIGURATION =
+      EscPos.builder().initialize().heating(MAX_HEATING_DOTS, HEATING_TIME, HEATING_INTERVAL).build();
+  private static final int BAUDRATE = 19200;
+  // Let the printer signal a full buffer over RTS/CTS instead of pacing the writes ourselves.
+  private static final boolean USE_FLOW_CONTROL = false;
+  private static final String QR_CODE_HEADER = "Here's your photo!";
   private UartDevice mDevice;
+  private UartWriter mUartWriter;
+  private PrintSpooler mPrintSpooler;
+  private final RasterEncoder mRasterEncoder = new RasterEncoder();
+  private final ExecutorService mEncoderExecutor =
+      Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+  private final BandPipeline mBandPipeline = new BandPipeline(mEncoderExecutor);
+  private final BufferPool mBufferPool = BufferPool.getInstance();
+  private final QrCodeRenderer mQrCodeRenderer = new QrCodeRenderer();
+  private final TemplateCache mTemplates = new TemplateCache();
+  private Bitmap mLogo;
 
   // Config settings for Ada 597 thermal printer.
   public ThermalPrinter(Context c) {
@@ -63,6 +80,9 @@ public class ThermalPrinter {
         Log.d(TAG, "Connecting to thermal printer at " + UART_DEVICE_NAME);
         mDevice = manager.openUartDevice(UART_DEVICE_NAME);
         configureUartFrame(mDevice);
+        mUartWriter = new UartWriter(mUartTransport, BAUDRATE, MAX_HEATING_DOTS, HEATING_TIME, HEATING_INTERVAL, DOT_WIDTH,
+            USE_FLOW_CONTROL);
+        mPrintSpooler = new PrintSpooler(mUartWriter);
         configurePrinter();
       }
     } catch (IOException e) {
@@ -70,178 +90,161 @@ public class ThermalPrinter {
     }
   }
 
+  private final PrinterTransport mUartTransport = new PrinterTransport() {
+    @Override public int write(byte[] buffer, int length) throws IOException {
+      return mDevice.write(buffer, length);
+    }
+  };
+
   private void configurePrinter() {
-    ByteArrayOutputStream config = getOutputStream();
-    writeToPrinterBuffer(config, PRINTER_INITIALIZE);
-    writeToPrinterBuffer(config, PRINTER_DARKER_PRINTING);
-    print(config);
+    submit(new PrintJob("configure", PrintJob.PRIORITY_HIGH).add(PRINTER_CONFIGURATION));
   }
 
-  private void writeToPrinterBuffer(ByteArrayOutputStream printerBuffer, byte[] command) {
-    try {
-      printerBuffer.write(command);
-    } catch (IOException e) {
-      Log.d(TAG, "IO Exception while writing printer data to buffer.", e);
+  /**
+   * Queue the job for printing and return right away.
+   */
+  public PrintJob submit(PrintJob job) {
+    if (mPrintSpooler == null) {
+      Log.w(TAG, "submit(): no printer, dropping " + job);
+      job.cancel();
+      return job;
     }
+    return mPrintSpooler.submit(job);
   }
 
-  private void addLineFeed(ByteArrayOutputStream printerBuffer, int numLines) {
-    try {
-      if (numLines <= 1) {
-        printerBuffer.write(BYTE_LF);
-      } else {
-        printerBuffer.write(PRINTER_PRINT_AND_FEED);
-        printerBuffer.write(numLines);
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  /**
+   * Jobs waiting for the printer.
+   */
+  public int getQueueDepth() {
+    return mPrintSpooler != null ? mPrintSpooler.getQueueDepth() : 0;
   }
 
-  private void print(ByteArrayOutputStream output) {
-    try {
-      writeUartData(output.toByteArray());
-    } catch (IOException e) {
-      Log.d(TAG, "IO Exception while printing.", e);
+  public void logStats() {
+    if (mPrintSpooler != null) {
+      mPrintSpooler.logStats();
     }
   }
 
+
   // Specific settings for the Ada 597 thermal printer.
   private void configureUartFrame(UartDevice uart) throws IOException {
     // Configure the UART port
-    uart.setBaudrate(19200);
+    uart.setBaudrate(BAUDRATE);
     uart.setDataSize(8);
     uart.setParity(UartDevice.PARITY_NONE);
     uart.setStopBits(1);
+    if (USE_FLOW_CONTROL) {
+      uart.setHardwareFlowControl(UartDevice.HW_FLOW_CONTROL_AUTO_RTSCTS);
+    }
   }
 
   void printBitmap(byte[] imageBytes) {
-    try {
-      writeUartData(imageBytes);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    submit(new PrintJob("bitmap", PrintJob.PRIORITY_NORMAL).add(ByteBuffer.wrap(imageBytes), 0));
   }
 
-  void printImage(Bitmap bitmap) {
-    if (mDevice == null) {
-      return;
-    }
-    int width = bitmap.getWidth();
-    int height = bitmap.getHeight();
-
-    final byte[] controlByte = { (byte) (0x00ff & width), (byte) ((0xff00 & width) >> 8) };
-    int[] pixels = new int[width * height];
-
-    bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-
-    final int BAND_HEIGHT = 24;
-
-    // Bands of pixels are sent that are 8 pixels high.  Iterate through bitmap
-    // 24 rows of pixels at a time, capturing bytes representing vertical slices 1 pixel wide.
-    // Each bit indicates if the pixel at that position in the slice should be dark or not.
-    for (int row = 0; row < height; row += BAND_HEIGHT) {
-      ByteArrayOutputStream imageData = getOutputStream();
-
-      writeToPrinterBuffer(imageData, PRINTER_SET_LINE_SPACE_24);
-
-      // Need to send these two sets of bytes at the beginning of each row.
-      writeToPrinterBuffer(imageData, PRINTER_SELECT_BIT_IMAGE_MODE);
-      writeToPrinterBuffer(imageData, controlByte);
-
-      // Columns, unlike rows, are one at a time.
-      for (int col = 0; col < width; col++) {
-
-        byte[] bandBytes = { 0x0, 0x0, 0x0 };
-
-        // Ugh, the nesting of forloops.  For each starting row/col position, evaluate
-        // each pixel in a column, or "band", 24 pixels high.  Convert into 3 bytes.
-        for (int rowOffset = 0; rowOffset < 8; rowOffset++) {
-
-          // Because the printer only maintains correct height/width ratio
-          // at the highest density, where it takes 24 bit-deep slices, process
-          // a 24-bit-deep slice as 3 bytes.
-          int[] pixelSlice = new int[3];
-          int pixel2Row = row + rowOffset + 8;
-          int pixel3Row = row + rowOffset + 16;
+  public PrintJob printImage(Bitmap bitmap) {
+    return submit(createImageJob(bitmap));
+  }
 
-          // If we go past the bottom of the image, just send white pixels so the printer
-          // doesn't do anything.  Everything still needs to be sent in sets of 3 rows.
-          pixelSlice[0] = bitmap.getPixel(col, row + rowOffset);
-          pixelSlice[1] = (pixel2Row >= bitmap.getHeight()) ? Color.WHITE : bitmap.getPixel(col, pixel2Row);
-          pixelSlice[2] = (pixel3Row >= bitmap.getHeight()) ? Color.WHITE : bitmap.getPixel(col, pixel3Row);
+  /**
+   * A job printing the image at the full printer width. The encoder only prints pure black dots, so the
+   * image is scaled and turned black and white by {@link ImageConverter} first.
+   */
+  public PrintJob createImageJob(Bitmap bitmap) {
+    PrintJob job = new PrintJob("image", PrintJob.PRIORITY_NORMAL);
+    Bitmap monochrome = ImageConverter.convertForPrinter(bitmap, DOT_WIDTH, Ditherer.Mode.THRESHOLD);
+    int width = monochrome.getWidth();
+    int height = monochrome.getHeight();
+
+    int[] pixels = mBufferPool.acquireIntArray(width * height);
+    monochrome.getPixels(pixels, 0, width, 0, 0, width, height);
+    monochrome.recycle();
+
+    // Bands of 24 rows are sent as vertical slices 1 pixel wide and 3 bytes deep, because the
+    // printer only keeps the correct height/width ratio at this density.
+    for (int row = 0; row < height; row += RasterEncoder.BAND_HEIGHT) {
+      job.add(copy(mRasterEncoder.encodeBand(pixels, width, height, row)), RasterEncoder.BAND_HEIGHT);
+    }
+    mBufferPool.releaseIntArray(pixels);
+    return job;
+  }
 
-          boolean[] isDark = {
-              pixelSlice[0] == Color.BLACK, pixelSlice[1] == Color.BLACK, pixelSlice[2] == Color.BLACK
-          };
+  /**
+   * Queue a photo for printing. Returns once it is encoded, the bitmap can be reused right away.
+   */
+  public PrintJob printPhoto(Bitmap photo, Ditherer.Mode mode) {
+    return printPhoto(new PrintJob("photo", PrintJob.PRIORITY_NORMAL), photo, mode);
+  }
 
-          // Towing that fine line between "should I forloop or not".  This will only
-          // ever be 3 elements deep.
-          if (isDark[0]) bandBytes[0] |= 1 << (7 - rowOffset);
-          if (isDark[1]) bandBytes[1] |= 1 << (7 - rowOffset);
-          if (isDark[2]) bandBytes[2] |= 1 << (7 - rowOffset);
-        }
-        writeToPrinterBuffer(imageData, bandBytes);
-      }
-      addLineFeed(imageData, 1);
-      print(imageData);
+  /**
+   * Print a photo into the given empty job: it is scaled to the printer width, then dithered and
+   * encoded on all cores. The job is queued before the encoding starts and gets the bands as they are
+   * done, so the printer starts on the first band right away. Returns once the photo is encoded, the
+   * bitmap can be reused right away.
+   */
+  public PrintJob printPhoto(final PrintJob job, Bitmap photo, Ditherer.Mode mode) {
+    submit(job.open());
+    if (job.isCancelled()) {
+      return job;
+    }
+    int height = Math.max(1, Math.round((float) photo.getHeight() * DOT_WIDTH / photo.getWidth()));
+    int[] pixels = mBufferPool.acquireIntArray(DOT_WIDTH * height);
+    if (photo.getWidth() == DOT_WIDTH && photo.getHeight() == height) {
+      photo.getPixels(pixels, 0, DOT_WIDTH, 0, 0, DOT_WIDTH, height);
+    } else {
+      Bitmap scaled = mBufferPool.acquireBitmap(DOT_WIDTH, height, Bitmap.Config.ARGB_8888);
+      new Canvas(scaled).drawBitmap(photo, null, new Rect(0, 0, DOT_WIDTH, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+      scaled.getPixels(pixels, 0, DOT_WIDTH, 0, 0, DOT_WIDTH, height);
+      mBufferPool.releaseBitmap(scaled);
     }
-  }
 
-  void printEmptyLines(int lines) {
-    if (mDevice == null) {
-      return;
+    try {
+      // Every band comes from its own encoder, so it can be kept as it is.
+      mBandPipeline.process(pixels, DOT_WIDTH, height, mode, new BandPipeline.BandSink() {
+        @Override public void onBand(ByteBuffer band) {
+          job.add(band, RasterEncoder.BAND_HEIGHT);
+        }
+      });
+    } catch (IOException e) {
+      Log.d(TAG, "IO Exception while encoding.", e);
+      job.cancel();
+    } finally {
+      job.seal();
     }
-    ByteArrayOutputStream printerBuffer = getOutputStream();
-    addLineFeed(printerBuffer, lines);
-    print(printerBuffer);
+    mBufferPool.releaseIntArray(pixels);
+    return job;
   }
 
   void printLn(String text) {
     Log.d(TAG, "Print line: " + text);
-    if (mDevice == null) {
-      Log.w(TAG, "printLn(): mDevice == null");
-      return;
-    }
-    // The EscPosBuilder will take our formatted text and convert it to a byte array
-    // understood as instructions and data by the printer.
-    ByteArrayOutputStream printerBuffer = getOutputStream();
-    writeToPrinterBuffer(printerBuffer, text.getBytes());
-    addLineFeed(printerBuffer, 1);
-    print(printerBuffer);
+    submit(new PrintJob("text", PrintJob.PRIORITY_NORMAL).add(mTemplates.line(text)));
   }
 
-  private synchronized void writeUartData(byte[] data) throws IOException {
-    // If printer isn't initialized, abort.
-    if (mDevice == null) {
-      Log.w(TAG, "writeUartData(): mDevice == null");
-      return;
-    }
-
-    // In the case of writing images, let's assume we shouldn't send more than 400 bytes
-    // at a time to avoid buffer overrun - At which point the thermal printer tends to
-    // either lock up or print garbage.
-    final int DEFAULT_CHUNK_SIZE = 400;
+  /**
+   * A logo printed above every QR code, at most {@link #DOT_WIDTH} wide and black and white. It is
+   * rasterized once and reused for every print.
+   */
+  public void setLogo(Bitmap logo) {
+    mLogo = logo;
+  }
 
-    byte[] chunk = new byte[DEFAULT_CHUNK_SIZE];
-    ByteBuffer byteBuffer = ByteBuffer.wrap(data);
-    while (byteBuffer.remaining() > DEFAULT_CHUNK_SIZE) {
-      byteBuffer.get(chunk);
-      mDevice.write(chunk, chunk.length);
-      try {
-        this.wait(100);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
-    if (byteBuffer.hasRemaining()) {
-      byte[] lastChunk = new byte[byteBuffer.remaining()];
-      byteBuffer.get(lastChunk);
-      mDevice.write(lastChunk, lastChunk.length);
-    }
+  private static ByteBuffer copy(ByteBuffer data) {
+    ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+    copy.put(data.duplicate());
+    copy.flip();
+    return copy;
   }
 
   public void close() {
+    if (mPrintSpooler != null) {
+      mPrintSpooler.close();
+      mPrintSpooler = null;
+    }
+    mEncoderExecutor.shutdownNow();
+    if (mUartWriter != null) {
+      mUartWriter.close();
+      mUartWriter = null;
+    }
     if (mDevice != null) {
       try {
         mDevice.close();
@@ -252,48 +255,34 @@ public class ThermalPrinter {
     }
   }
 
-  private ByteArrayOutputStream getOutputStream() {
-    return new ByteArrayOutputStream();
+  public PrintJob printQrCode(String data, int size, String label) {
+    return submit(createQrCodeJob(data, size, label));
   }
 
-  public void printQrCode(String data, int size, String label) {
-    if (mDevice == null) {
-      return;
-    }
-
-    Bitmap qrBitmap;
+  public PrintJob createQrCodeJob(String data, int size, String label) {
+    PrintJob job = new PrintJob("qr code", PrintJob.PRIORITY_NORMAL);
     try {
-      printLn("Here's your photo!");
-      printEmptyLines(1);
-      qrBitmap = generateQrCode(data, size);
+      if (mLogo != null) {
+        job.addAll(mTemplates.image("logo@" + System.identityHashCode(mLogo), mLogo));
+      }
+      // The header is encoded once and then only referenced by each job.
+      job.add(mTemplates.line(QR_CODE_HEADER), mTemplates.feed(1));
+      QrCodeRenderer.Raster qrCode = mQrCodeRenderer.render(data, size, ErrorCorrectionLevel.H); // H = 30% damage
 
-      Log.d(TAG, "Width: " + qrBitmap.getWidth() + ", Height: " + qrBitmap.getHeight());
+      Log.d(TAG, "Width: " + qrCode.width + ", Height: " + qrCode.height);
 
-      printImage(qrBitmap);
+      // One segment per band of the cached code, so the job can be cancelled in the middle of it.
+      int bandSize = RasterEncoder.bandSize(qrCode.width);
+      for (int offset = 0; offset < qrCode.bands.length; offset += bandSize) {
+        job.add(EscPos.wrap(qrCode.bands, offset, bandSize, RasterEncoder.BAND_HEIGHT));
+      }
       if (label != null && !label.isEmpty()) {
-        printLn(label);
-        printEmptyLines(3);
+        job.add(mTemplates.line(label), mTemplates.feed(3));
       }
     } catch (WriterException e) {
       Log.d(TAG, "Exception: ", e);
+      job.cancel();
     }
-  }
-
-  public Bitmap generateQrCode(String myCodeText, int size) throws WriterException {
-    Hashtable<EncodeHintType, ErrorCorrectionLevel> hintMap = new Hashtable<EncodeHintType, ErrorCorrectionLevel>();
-    hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H); // H = 30% damage
-
-    QRCodeWriter qrCodeWriter = new QRCodeWriter();
-
-    BitMatrix bitMatrix = qrCodeWriter.encode(myCodeText, BarcodeFormat.QR_CODE, size, size, hintMap);
-    int width = bitMatrix.getWidth();
-
-    Bitmap bmp = Bitmap.createBitmap(width, width, Bitmap.Config.RGB_565);
-    for (int x = 0; x < width; x++) {
-      for (int y = 0; y < width; y++) {
-        bmp.setPixel(y, x, (bitMatrix.get(x, y) ? Color.BLACK : Color.WHITE));
-      }
-    }
-    return Bitmap.createScaledBitmap(bmp, bmp.getWidth(), bmp.getHeight(), false);
+    return job;
   }
 }
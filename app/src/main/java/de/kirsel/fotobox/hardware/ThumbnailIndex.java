@@ -0,0 +1,233 @@
+package de.kirsel.fotobox.hardware;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import com.github.mjdev.libaums.fs.UsbFile;
+import de.kirsel.fotobox.utilities.BufferPool;
+import de.kirsel.fotobox.utilities.DerivativeDecoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Small JPEG thumbnails of all photos on a drive, so a gallery can be shown without reading the full
+ * images. The thumbnails are appended to one pack file next to the photos, and an append-only index
+ * has a line {@code path timestamp size offset length [name]} for each of them. The name is only there
+ * if the photo had to be saved under another file name, because one of the same name was already on
+ * the drive. It is the name links and the gallery use. The index is read once when
+ * the drive is mounted, and only photos it doesn't know yet get a new thumbnail, see
+ * {@link #findUnindexed()}.
+ */
+public class ThumbnailIndex {
+  private static final String TAG = ThumbnailIndex.class.getSimpleName();
+
+  private static final String PACK_NAME = "THUMBS.DAT";
+  private static final String INDEX_NAME = "THUMBS.IDX";
+  private static final int THUMBNAIL_WIDTH = 160;
+  private static final int THUMBNAIL_QUALITY = 80;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /**
+   * One photo on the drive and where its thumbnail is in the pack file.
+   */
+  public static class Entry {
+    // Path of the photo below the photo directory, like "2017-06-10_18/1497110400000.JPEG".
+    public final String path;
+    // Name the photo was saved as, which is the file name in the path unless that was taken.
+    public final String name;
+    public final long timestamp;
+    public final long size;
+    final long offset;
+    final int length;
+    final ThumbnailIndex index;
+
+    Entry(String path, String name, long timestamp, long size, long offset, int length, ThumbnailIndex index) {
+      this.path = path;
+      this.name = name != null ? name : fileName(path);
+      this.timestamp = timestamp;
+      this.size = size;
+      this.offset = offset;
+      this.length = length;
+      this.index = index;
+    }
+  }
+
+  private final UsbFile mDirectory;
+  private final UsbFile mPack;
+  private final UsbFile mIndex;
+  private final List<Entry> mEntries = new ArrayList<>();
+  private final Set<String> mPaths = new HashSet<>();
+  // Entries by the name their photo was saved as, for lookups from the photo server.
+  private final Map<String, Entry> mByName = new HashMap<>();
+
+  /**
+   * Open the index in the given photo directory and read all entries from it.
+   */
+  public ThumbnailIndex(UsbFile directory) throws IOException {
+    mDirectory = directory;
+    mPack = openFile(directory, PACK_NAME);
+    mIndex = openFile(directory, INDEX_NAME);
+    load();
+  }
+
+  /**
+   * All photos that are on the drive but not in the index yet, for example because they were copied
+   * there by hand or the box lost power right after writing them.
+   */
+  public synchronized List<UsbFile> findUnindexed() throws IOException {
+    List<UsbFile> photos = new ArrayList<>();
+    for (UsbFile shard : mDirectory.listFiles()) {
+      if (!shard.isDirectory()) {
+        continue;
+      }
+      for (UsbFile photo : shard.listFiles()) {
+        String path = shard.getName() + "/" + photo.getName();
+        boolean jpeg = photo.getName().toUpperCase(Locale.US).endsWith(".JPEG");
+        if (jpeg && !photo.isDirectory() && !mPaths.contains(path)) {
+          photos.add(photo);
+        }
+      }
+    }
+    return photos;
+  }
+
+  /**
+   * Create the thumbnail of a photo that was just written, from the JPEG still in memory. The position
+   * of the buffer is left untouched. The photo is recorded under the given name even if it can't be
+   * decoded, so it can still be found by that name.
+   */
+  public synchronized void add(String path, String name, long timestamp, ByteBuffer jpeg) throws IOException {
+    if (!mPaths.contains(path)) {
+      byte[] thumbnail = encode(path, jpeg);
+      add(path, name, timestamp, jpeg.remaining(), thumbnail != null ? thumbnail : new byte[0]);
+    }
+  }
+
+  /**
+   * Add a thumbnail made by {@link #encode}, or nothing if it is null. An empty thumbnail only records
+   * the photo.
+   */
+  public synchronized void add(String path, String name, long timestamp, long size, byte[] thumbnail)
+      throws IOException {
+    if (thumbnail == null || mPaths.contains(path)) {
+      return;
+    }
+    // The thumbnail goes first, so an index line never points at data that isn't there.
+    long offset = thumbnail.length > 0 ? append(mPack, thumbnail) : mPack.getLength();
+    Entry entry = new Entry(path, name, timestamp, size, offset, thumbnail.length, this);
+    String line = path + " " + timestamp + " " + entry.size + " " + offset + " " + entry.length;
+    if (!entry.name.equals(fileName(path))) {
+      line += " " + entry.name;
+    }
+    append(mIndex, (line + "\n").getBytes(ASCII));
+    addEntry(entry);
+    mPaths.add(path);
+  }
+
+  /**
+   * Decode the photo at thumbnail size and compress it, or null if it can't be decoded. This doesn't
+   * touch the drive, so it can run without holding any lock.
+   */
+  public static byte[] encode(String path, ByteBuffer jpeg) {
+    Bitmap thumbnail = DerivativeDecoder.decodeToWidth(jpeg, THUMBNAIL_WIDTH);
+    if (thumbnail == null) {
+      Log.w(TAG, "No thumbnail for " + path);
+      return null;
+    }
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, encoded);
+    BufferPool.getInstance().releaseBitmap(thumbnail);
+    return encoded.toByteArray();
+  }
+
+  /**
+   * The entry of the photo with the given file name, or null.
+   */
+  public synchronized Entry find(String name) {
+    return mByName.get(name);
+  }
+
+  private void addEntry(Entry entry) {
+    mEntries.add(entry);
+    // A photo saved under another file name is the newest one of its name. One under its own file name
+    // may be an older one that is only indexed now, e.g. after it was copied to the drive by hand.
+    if (!entry.name.equals(fileName(entry.path)) || !mByName.containsKey(entry.name)) {
+      mByName.put(entry.name, entry);
+    }
+  }
+
+  private static String fileName(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * All photos in the order they were added.
+   */
+  public synchronized List<Entry> getEntries() {
+    return Collections.unmodifiableList(new ArrayList<>(mEntries));
+  }
+
+  /**
+   * The thumbnail JPEG of the entry, read from the pack file, or null if the photo has none.
+   */
+  public synchronized ByteBuffer readThumbnail(Entry entry) throws IOException {
+    if (entry.length == 0) {
+      return null;
+    }
+    ByteBuffer thumbnail = ByteBuffer.allocate(entry.length);
+    mPack.read(entry.offset, thumbnail);
+    thumbnail.flip();
+    return thumbnail;
+  }
+
+  private void load() throws IOException {
+    long packLength = mPack.getLength();
+    ByteBuffer index = ByteBuffer.allocate((int) mIndex.getLength());
+    mIndex.read(0, index);
+    String text = new String(index.array(), 0, index.position(), ASCII);
+    for (String line : text.split("\n")) {
+      String[] parts = line.split(" ");
+      try {
+        if (parts.length != 5 && parts.length != 6) {
+          throw new NumberFormatException(line);
+        }
+        Entry entry = new Entry(parts[0], parts.length == 6 ? parts[5] : null, Long.parseLong(parts[1]),
+            Long.parseLong(parts[2]), Long.parseLong(parts[3]), Integer.parseInt(parts[4]), this);
+        if (entry.offset + entry.length <= packLength && mPaths.add(entry.path)) {
+          addEntry(entry);
+        }
+      } catch (NumberFormatException e) {
+        // A torn last line after a power cut, the photo gets a new thumbnail as an unindexed one.
+        if (!line.isEmpty()) {
+          Log.w(TAG, "Skipping broken index line: " + line);
+        }
+      }
+    }
+    if (!text.isEmpty() && !text.endsWith("\n")) {
+      // Don't let the next line continue the torn one.
+      append(mIndex, "\n".getBytes(ASCII));
+    }
+  }
+
+  private static long append(UsbFile file, byte[] data) throws IOException {
+    long offset = file.getLength();
+    file.setLength(offset + data.length);
+    file.write(offset, ByteBuffer.wrap(data));
+    file.flush();
+    return offset;
+  }
+
+  private static UsbFile openFile(UsbFile parent, String name) throws IOException {
+    UsbFile file = parent.search(name);
+    return file != null ? file : parent.createFile(name);
+  }
+}
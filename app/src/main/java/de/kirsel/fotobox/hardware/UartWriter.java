@@ -0,0 +1,200 @@
+package de.kirsel.fotobox.hardware;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds the printer from a ring buffer on its own thread. Instead of waiting a fixed time between
+ * chunks, writes are paced by how long the bytes take on the wire at the configured baud rate and
+ * how long the printer needs to burn the dot rows they contain. With hardware flow control the
+ * printer paces the writes itself.
+ */
+public class UartWriter {
+  private static final String TAG = UartWriter.class.getSimpleName();
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+  // Largest single write to the UART, below the printer's input buffer.
+  private static final int CHUNK_SIZE = 256;
+  // Start bit, 8 data bits, stop bit and a little slack, as the printer manual suggests.
+  private static final int BITS_PER_BYTE = 11;
+
+  private final PrinterTransport mDevice;
+  private final boolean mFlowControl;
+  private final long mByteNanos;
+  private final long mDotRowNanos;
+
+  private final byte[] mRing = new byte[BUFFER_SIZE];
+  // Dot rows the printer still has to burn for the bytes in the ring, counted at their end position.
+  private final int[] mDotRows = new int[BUFFER_SIZE];
+  private final byte[] mChunk = new byte[CHUNK_SIZE];
+  private int mHead;
+  private int mSize;
+  private boolean mWriting;
+  private boolean mClosed;
+
+  private final Thread mThread;
+
+  /**
+   * @param baudrate UART speed in bits per second
+   * @param maxHeatingDots dots heated at once, in units of 8 dots
+   * @param heatTime heating time in units of 10 uS
+   * @param heatInterval heating interval in units of 10 uS
+   * @param dotWidth dots per line
+   * @param flowControl true if the printer signals when its buffer is full
+   */
+  public UartWriter(PrinterTransport device, int baudrate, int maxHeatingDots, int heatTime, int heatInterval,
+      int dotWidth, boolean flowControl) {
+    mDevice = device;
+    mFlowControl = flowControl;
+    mByteNanos = 1000000000L * BITS_PER_BYTE / baudrate;
+    // A dot row is burned in groups of heating dots, each taking heating time plus interval.
+    int heatingGroups = (dotWidth + maxHeatingDots * 8 - 1) / (maxHeatingDots * 8);
+    mDotRowNanos = heatingGroups * (heatTime + heatInterval) * 10000L;
+
+    mThread = new Thread(mWriteLoop, "PrinterOutput");
+    mThread.start();
+  }
+
+  /**
+   * Queue the data for the printer, blocking only while the ring buffer is full.
+   *
+   * @param dotRows number of dot rows printed by this data, used to pace the following writes
+   */
+  public void write(ByteBuffer data, int dotRows) throws IOException {
+    write(new ByteBuffer[] { data }, dotRows);
+  }
+
+  /**
+   * Queue several buffers back to back, as if they were one.
+   *
+   * @param dotRows number of dot rows printed by all of the data
+   */
+  public synchronized void write(ByteBuffer[] data, int dotRows) throws IOException {
+    int last = -1;
+    for (ByteBuffer buffer : data) {
+      while (buffer.hasRemaining()) {
+        while (mSize == BUFFER_SIZE && !mClosed) {
+          waitForChange();
+        }
+        if (mClosed) {
+          throw new IOException("UART writer closed");
+        }
+        int tail = (mHead + mSize) % BUFFER_SIZE;
+        int length = Math.min(buffer.remaining(), Math.min(BUFFER_SIZE - mSize, BUFFER_SIZE - tail));
+        buffer.get(mRing, tail, length);
+        mSize += length;
+        last = (tail + length - 1) % BUFFER_SIZE;
+        notifyAll();
+      }
+    }
+    if (last >= 0) {
+      mDotRows[last] += dotRows;
+    }
+  }
+
+  /**
+   * Block until everything queued so far was written to the UART.
+   */
+  public synchronized void drain() throws IOException {
+    while ((mSize > 0 || mWriting) && !mClosed) {
+      waitForChange();
+    }
+  }
+
+  /**
+   * Stop the output thread, queued data that was not written yet is dropped.
+   */
+  public void close() {
+    synchronized (this) {
+      mClosed = true;
+      notifyAll();
+    }
+    mThread.interrupt();
+  }
+
+  /**
+   * Wait until the ring buffer changes. An interrupt only stops the waiting thread, the writer stays
+   * open until {@link #close()}.
+   */
+  private void waitForChange() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the printer");
+    }
+  }
+
+  private final Runnable mWriteLoop = new Runnable() {
+    @Override public void run() {
+      long nextWrite = System.nanoTime();
+      while (true) {
+        int length;
+        int dotRows = 0;
+        synchronized (UartWriter.this) {
+          try {
+            while (mSize == 0 && !mClosed) {
+              waitForChange();
+            }
+          } catch (InterruptedIOException e) {
+            // Only close() interrupts the output thread.
+            return;
+          }
+          if (mClosed) {
+            return;
+          }
+          length = Math.min(mSize, Math.min(CHUNK_SIZE, BUFFER_SIZE - mHead));
+          System.arraycopy(mRing, mHead, mChunk, 0, length);
+          for (int i = mHead; i < mHead + length; i++) {
+            dotRows += mDotRows[i];
+            mDotRows[i] = 0;
+          }
+          mHead = (mHead + length) % BUFFER_SIZE;
+          mSize -= length;
+          mWriting = true;
+          UartWriter.this.notifyAll();
+        }
+
+        if (!mFlowControl) {
+          long delay = nextWrite - System.nanoTime();
+          if (delay > 0) {
+            sleep(delay);
+          }
+        }
+        try {
+          int remaining = length;
+          while (remaining > 0) {
+            int count = mDevice.write(mChunk, remaining);
+            remaining -= count;
+            if (remaining > 0) {
+              // The UART took only part of the chunk, move the rest to the front and try again.
+              System.arraycopy(mChunk, count, mChunk, 0, remaining);
+              if (count == 0) {
+                sleep(1000000L);
+              }
+            }
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Unable to write to UART", e);
+        }
+        nextWrite = Math.max(nextWrite, System.nanoTime()) + length * mByteNanos
+            + dotRows * mDotRowNanos;
+
+        synchronized (UartWriter.this) {
+          mWriting = false;
+          UartWriter.this.notifyAll();
+        }
+      }
+    }
+  };
+
+  private static void sleep(long nanos) {
+    try {
+      Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
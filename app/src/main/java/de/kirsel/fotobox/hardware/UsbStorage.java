@@ -15,24 +15,92 @@
  */
 package de.kirsel.fotobox.hardware;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
 import android.util.Log;
+import de.kirsel.fotobox.utilities.LatencyTracer;
+import de.kirsel.fotobox.utilities.PhotoServer;
 import com.github.mjdev.libaums.UsbMassStorageDevice;
 import com.github.mjdev.libaums.fs.FileSystem;
 import com.github.mjdev.libaums.fs.UsbFile;
-import com.github.mjdev.libaums.fs.UsbFileStreamFactory;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Helper class to deal with methods to deal with images from the camera.
  */
-public class UsbStorage {
+public class UsbStorage implements StorageSink {
   private static final String TAG = UsbStorage.class.getSimpleName();
 
-  private FileSystem fileSystem;
+  // Target size of one write, rounded to whole clusters so every write starts on a cluster boundary.
+  private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+  // Failed writes in a row before a drive is given up on and set up again.
+  private static final int MAX_WRITE_FAILURES = 3;
+  private static final long RESCAN_DELAY_MILLIS = 2000;
+
+  /**
+   * How the drive for the next file is picked when several are plugged in.
+   */
+  public enum Selection {
+    // The drive with the most free space.
+    MOST_FREE_SPACE,
+    // One drive after the other, to spread the writes.
+    ROUND_ROBIN
+  }
+
+  // Photos go into one directory per hour below this one, so no directory grows past a few hundred entries.
+  private static final String PHOTO_DIRECTORY = "FOTOBOX";
+
+  private static class Volume {
+    final String deviceName;
+    final UsbMassStorageDevice device;
+    final FileSystem fileSystem;
+    // Hour directories already opened on this drive, and the names in each of them.
+    final Map<String, UsbFile> shards = new HashMap<>();
+    final Map<String, Set<String>> shardNames = new HashMap<>();
+    UsbFile photoDirectory;
+    ThumbnailIndex thumbnails;
+    int writeFailures;
+
+    Volume(String deviceName, UsbMassStorageDevice device, FileSystem fileSystem) {
+      this.deviceName = deviceName;
+      this.device = device;
+      this.fileSystem = fileSystem;
+    }
+  }
+
+  private final List<Volume> mVolumes = new ArrayList<>();
+  private Selection mSelection = Selection.MOST_FREE_SPACE;
+  private int mNextVolume;
+  private long mLastName;
+  private final SimpleDateFormat mShardFormat = new SimpleDateFormat("yyyy-MM-dd_HH", Locale.US);
+  private volatile Runnable mOnStorageAttachedListener;
+  private Context mContext;
+  private Handler mHandler;
+  private ByteBuffer mWriteBuffer;
+  // Builds missing thumbnails of newly mounted drives.
+  private final ExecutorService mThumbnailExecutor = Executors.newSingleThreadExecutor();
+  // Bytes and nanoseconds written per volume label, to compare sticks.
+  private final Map<String, long[]> mThroughput = new HashMap<>();
 
   // Lazy-loaded singleton, so only one instance of the storage is created.
   private UsbStorage() {
@@ -47,48 +115,538 @@ public class UsbStorage {
   }
 
   /**
-   * Initialize the camera fileSystem
+   * Initialize the USB drives that are plugged in and keep track of drives being attached or detached.
+   * Drives are set up on the thread of the given handler.
    */
-  public void initializeUsbStorage(Context context) {
-    // Discover the camera instance
-    UsbMassStorageDevice[] devices = UsbMassStorageDevice.getMassStorageDevices(context);
+  public synchronized void initializeUsbStorage(Context context, Handler handler) {
+    mContext = context;
+    mHandler = handler;
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+    filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+    context.registerReceiver(mUsbReceiver, filter, null, handler);
+    handler.post(mRescan);
+  }
+
+  /**
+   * Stop watching for drives and release all of them.
+   */
+  public synchronized void shutDown(Context context) {
+    context.unregisterReceiver(mUsbReceiver);
+    if (mHandler != null) {
+      mHandler.removeCallbacks(mRescan);
+    }
+    for (Volume volume : mVolumes) {
+      volume.device.close();
+    }
+    mVolumes.clear();
+  }
 
-    for (UsbMassStorageDevice d : devices) {
+  public synchronized void setSelection(Selection selection) {
+    mSelection = selection;
+  }
 
-      // before interacting with a fileSystem you need to call init()!
+  /**
+   * Called on the handler thread whenever a drive became usable.
+   */
+  public void setOnStorageAttachedListener(Runnable listener) {
+    mOnStorageAttachedListener = listener;
+  }
+
+  private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
+    @Override public void onReceive(Context context, Intent intent) {
+      if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+        scanDevices(context);
+      } else {
+        UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if (device != null) {
+          removeVolume(device.getDeviceName());
+        }
+      }
+    }
+  };
+
+  private final Runnable mRescan = new Runnable() {
+    @Override public void run() {
+      Context context;
+      synchronized (UsbStorage.this) {
+        context = mContext;
+      }
+      scanDevices(context);
+    }
+  };
+
+  private void scanDevices(Context context) {
+    boolean attached = false;
+    for (UsbMassStorageDevice d : UsbMassStorageDevice.getMassStorageDevices(context)) {
+      String name = d.getUsbDevice().getDeviceName();
+      synchronized (this) {
+        if (findVolume(name) != null) {
+          continue;
+        }
+        // before interacting with a fileSystem you need to call init()!
+        try {
+          d.init();
+          // Only uses the first partition on the fileSystem
+          FileSystem fileSystem = d.getPartitions().get(0).getFileSystem();
+          Volume volume = new Volume(name, d, fileSystem);
+          openThumbnails(volume);
+          mVolumes.add(volume);
+          attached = true;
+          Log.d(TAG, "USB drive attached: " + fileSystem.getVolumeLabel() + ", " + fileSystem.getFreeSpace()
+              + " bytes free");
+        } catch (IOException | IndexOutOfBoundsException e) {
+          Log.w(TAG, "Could not use USB drive " + name, e);
+          d.close();
+        }
+      }
+    }
+    Runnable listener = mOnStorageAttachedListener;
+    if (attached && listener != null) {
+      listener.run();
+    }
+  }
+
+  private void openThumbnails(final Volume volume) {
+    try {
+      volume.photoDirectory = openDirectory(volume.fileSystem.getRootDirectory(), PHOTO_DIRECTORY);
+      volume.thumbnails = new ThumbnailIndex(volume.photoDirectory);
+      mThumbnailExecutor.execute(new Runnable() {
+        @Override public void run() {
+          indexThumbnails(volume);
+        }
+      });
+    } catch (IOException e) {
+      // The photos are more important than the gallery, the drive is still used.
+      Log.w(TAG, "Could not open thumbnail index on " + volume.deviceName, e);
+    }
+  }
+
+  /**
+   * Add thumbnails for the photos the index doesn't know yet. This can take minutes on a full drive,
+   * so it runs in the background one photo at a time: the photo is read under the storage lock, but
+   * decoded without it, so captures keep being saved in between.
+   */
+  private void indexThumbnails(Volume volume) {
+    List<UsbFile> photos;
+    synchronized (this) {
+      if (!mVolumes.contains(volume)) {
+        return;
+      }
       try {
-        d.init();
-        // Only uses the first partition on the fileSystem
-        fileSystem = d.getPartitions().get(0).getFileSystem();
+        photos = volume.thumbnails.findUnindexed();
       } catch (IOException e) {
-        e.printStackTrace();
+        Log.w(TAG, "Could not list photos on " + volume.deviceName, e);
+        return;
       }
     }
+    int added = 0;
+    for (UsbFile photo : photos) {
+      String path;
+      long timestamp;
+      ByteBuffer jpeg;
+      synchronized (this) {
+        if (!mVolumes.contains(volume)) {
+          return;
+        }
+        try {
+          path = photo.getParent().getName() + "/" + photo.getName();
+          timestamp = captureTime(photo.getName(), photo.lastModified());
+          jpeg = ByteBuffer.allocate((int) photo.getLength());
+          photo.read(0, jpeg);
+          jpeg.flip();
+        } catch (IOException e) {
+          Log.w(TAG, "Could not read " + photo.getName() + " for its thumbnail", e);
+          continue;
+        }
+      }
+      byte[] thumbnail = ThumbnailIndex.encode(path, jpeg);
+      if (thumbnail == null) {
+        continue;
+      }
+      synchronized (this) {
+        if (!mVolumes.contains(volume)) {
+          return;
+        }
+        try {
+          volume.thumbnails.add(path, photo.getName(), timestamp, jpeg.limit(), thumbnail);
+          added++;
+        } catch (IOException e) {
+          Log.w(TAG, "Could not add thumbnail of " + path, e);
+        }
+      }
+    }
+    Log.d(TAG, "Thumbnail index on " + volume.deviceName + " has " + volume.thumbnails.getEntries().size()
+        + " photos, " + added + " added on mount");
+  }
+
+  /**
+   * Thumbnails of all photos on all drives that are plugged in.
+   */
+  public synchronized List<ThumbnailIndex.Entry> getGallery() {
+    List<ThumbnailIndex.Entry> gallery = new ArrayList<>();
+    for (Volume volume : mVolumes) {
+      if (volume.thumbnails != null) {
+        gallery.addAll(volume.thumbnails.getEntries());
+      }
+    }
+    return gallery;
+  }
+
+  /**
+   * The thumbnail JPEG of a gallery entry, or null if its drive is gone.
+   */
+  public synchronized ByteBuffer readThumbnail(ThumbnailIndex.Entry entry) {
+    for (Volume volume : mVolumes) {
+      if (volume.thumbnails == entry.index) {
+        try {
+          return entry.index.readThumbnail(entry);
+        } catch (IOException e) {
+          Log.w(TAG, "Could not read thumbnail of " + entry.path, e);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A photo written by {@link #saveJpeg} on whichever drive has it, or null if none does. It is looked
+   * up by the name it was saved as, which the thumbnail index maps to the file it actually went to.
+   * The photo is read in small chunks while it is sent, each under the storage lock, so downloads
+   * never hold a whole JPEG in memory and don't keep the sync from writing for long.
+   */
+  public synchronized PhotoServer.Resource openPhoto(final String name) {
+    for (final Volume volume : mVolumes) {
+      if (volume.photoDirectory == null) {
+        continue;
+      }
+      // Without an index entry the photo can only be under its own name.
+      ThumbnailIndex.Entry entry = volume.thumbnails != null ? volume.thumbnails.find(name) : null;
+      String path = entry != null ? entry.path : mShardFormat.format(new Date(captureTime(name, 0))) + "/" + name;
+      String shardName = path.substring(0, path.indexOf('/'));
+      try {
+        UsbFile shard = volume.shards.get(shardName);
+        if (shard == null) {
+          shard = volume.photoDirectory.search(shardName);
+        }
+        final UsbFile photo = shard != null ? shard.search(path.substring(shardName.length() + 1)) : null;
+        if (photo != null && !photo.isDirectory()) {
+          return new UsbFileResource(volume, photo, name);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Could not find " + name + " on " + volume.deviceName, e);
+      }
+    }
+    return null;
+  }
+
+  private class UsbFileResource implements PhotoServer.Resource {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Volume mVolume;
+    private final UsbFile mFile;
+    private final String mName;
+    private final long mLength;
+
+    UsbFileResource(Volume volume, UsbFile file, String name) {
+      mVolume = volume;
+      mFile = file;
+      mName = name;
+      mLength = file.getLength();
+    }
+
+    @Override public long length() {
+      return mLength;
+    }
+
+    @Override public String etag() {
+      // Photos are never changed once written, so the name and size make a good ETag.
+      return mName + "-" + mLength;
+    }
+
+    @Override public String contentType() {
+      return "image/jpeg";
+    }
+
+    @Override public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+      // Heap buffer, libaums needs the backing array.
+      ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, count));
+      while (count > 0) {
+        chunk.clear();
+        chunk.limit((int) Math.min(chunk.capacity(), count));
+        synchronized (UsbStorage.this) {
+          if (!mVolumes.contains(mVolume)) {
+            throw new IOException("USB drive " + mVolume.deviceName + " is gone");
+          }
+          mFile.read(offset, chunk);
+        }
+        chunk.flip();
+        offset += chunk.remaining();
+        count -= chunk.remaining();
+        while (chunk.hasRemaining()) {
+          target.write(chunk);
+        }
+      }
+    }
+  }
+
+  /**
+   * The gallery entry of the photo with the given file name, or null if no drive has it.
+   */
+  public synchronized ThumbnailIndex.Entry findThumbnail(String name) {
+    for (Volume volume : mVolumes) {
+      ThumbnailIndex.Entry entry = volume.thumbnails != null ? volume.thumbnails.find(name) : null;
+      if (entry != null) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void removeVolume(String deviceName) {
+    Volume volume = findVolume(deviceName);
+    if (volume != null) {
+      mVolumes.remove(volume);
+      volume.device.close();
+      Log.d(TAG, "USB drive detached: " + deviceName);
+    }
+  }
+
+  private Volume findVolume(String deviceName) {
+    for (Volume volume : mVolumes) {
+      if (volume.deviceName.equals(deviceName)) {
+        return volume;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The drive to write the next file to, or null if there is none.
+   */
+  private Volume selectVolume(List<Volume> candidates) {
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    if (mSelection == Selection.ROUND_ROBIN) {
+      return candidates.get(mNextVolume++ % candidates.size());
+    }
+    Volume best = null;
+    long bestFree = -1;
+    for (Volume volume : candidates) {
+      long free = volume.fileSystem.getFreeSpace();
+      if (free > bestFree) {
+        best = volume;
+        bestFree = free;
+      }
+    }
+    return best;
   }
 
   public void saveImage(Bitmap bitmap) {
-    if (fileSystem != null) {
+    // Compress in memory first, so the drive sees a few large writes instead of many small ones.
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
+    saveJpeg(ByteBuffer.wrap(os.toByteArray()));
+  }
 
-      UsbFile root = fileSystem.getRootDirectory();
+  /**
+   * Write an already encoded JPEG straight to the USB drive, without decoding it into a Bitmap.
+   * The position of the given buffer is left untouched. The buffer may be direct, like the camera's
+   * image plane or a mapped file: it never reaches libaums itself, which needs a backing array, but is
+   * copied in chunks through a heap buffer by {@link #writeAligned}.
+   *
+   * @return true if the image was written to the drive
+   */
+  @Override public boolean saveJpeg(ByteBuffer jpeg) {
+    String name = getDate() + ".JPEG";
+    LatencyTracer.getInstance().attach(name);
+    return saveJpeg(name, jpeg);
+  }
 
+  /**
+   * If writing to the selected drive fails, the partial file is removed and the next drive is tried.
+   * A single failure, like a hiccup on the bus, keeps the drive for the next photo. Only after
+   * {@value #MAX_WRITE_FAILURES} failures in a row it is closed and set up again from scratch.
+   */
+  @Override public synchronized boolean saveJpeg(String name, ByteBuffer jpeg) {
+    List<Volume> candidates = new ArrayList<>(mVolumes);
+    Volume volume;
+    while ((volume = selectVolume(candidates)) != null) {
+      FileSystem fileSystem = volume.fileSystem;
+      UsbFile file = null;
       try {
-        UsbFile file = root.createFile(getDate() + ".JPEG");
+        file = createFile(volume, name);
 
-        // write to a file
-        OutputStream os = UsbFileStreamFactory.createBufferedOutputStream(file, fileSystem);
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
-        os.close();
-        Log.d(TAG, "Image " + file.getName() + " saved on USB drive: " + fileSystem.getVolumeLabel());
+        long start = System.nanoTime();
+        writeAligned(fileSystem, file, jpeg.duplicate());
+        LatencyTracer.getInstance().mark(LatencyTracer.Stage.WRITE, name);
+        file.flush();
+        file.close();
+        LatencyTracer.getInstance().mark(LatencyTracer.Stage.FSYNC, name);
+        Log.d(TAG, "Image " + file.getName() + " saved on USB drive: " + fileSystem.getVolumeLabel()
+            + ", " + recordThroughput(fileSystem.getVolumeLabel(), jpeg.remaining(), System.nanoTime() - start));
+        addThumbnail(volume, file, name, jpeg);
+        volume.writeFailures = 0;
+        return true;
       } catch (IOException e) {
-        e.printStackTrace();
+        Log.w(TAG, "Writing to USB drive " + volume.deviceName + " failed, trying the next one", e);
+        candidates.remove(volume);
+        onWriteFailed(volume, file);
+      }
+    }
+    Log.d(TAG, "No USB drive detected!");
+    return false;
+  }
+
+  private void onWriteFailed(Volume volume, UsbFile file) {
+    if (file != null) {
+      try {
+        file.delete();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not delete partial " + file.getName(), e);
+      }
+    }
+    // The cached directories may not match the drive anymore, read them again next time.
+    volume.shards.clear();
+    volume.shardNames.clear();
+    if (++volume.writeFailures < MAX_WRITE_FAILURES) {
+      return;
+    }
+    // Still plugged in but keeps failing, start over as if it was attached again.
+    Log.w(TAG, "USB drive " + volume.deviceName + " failed " + volume.writeFailures + " times, resetting it");
+    removeVolume(volume.deviceName);
+    if (mHandler != null) {
+      mHandler.removeCallbacks(mRescan);
+      mHandler.postDelayed(mRescan, RESCAN_DELAY_MILLIS);
+    }
+  }
+
+  /**
+   * Record the photo in the index under the name it was saved as, which differs from its file name if
+   * that was already taken.
+   */
+  private void addThumbnail(Volume volume, UsbFile file, String name, ByteBuffer jpeg) {
+    if (volume.thumbnails == null) {
+      return;
+    }
+    try {
+      volume.thumbnails.add(file.getParent().getName() + "/" + file.getName(), name,
+          captureTime(file.getName(), System.currentTimeMillis()), jpeg);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not add thumbnail of " + file.getName(), e);
+    }
+  }
+
+  /**
+   * The epoch millis a file name starts with, or the fallback if it doesn't.
+   */
+  static long captureTime(String name, long fallback) {
+    int digits = 0;
+    while (digits < name.length() && Character.isDigit(name.charAt(digits))) {
+      digits++;
+    }
+    return digits > 0 && digits < 19 ? Long.parseLong(name.substring(0, digits)) : fallback;
+  }
+
+  /**
+   * Create the file in the directory for the hour it was taken, which comes from the epoch millis at
+   * the start of the name. Directories and their contents are read from the drive once and then kept
+   * in memory, so finding a free name doesn't scan the drive again.
+   */
+  private UsbFile createFile(Volume volume, String name) throws IOException {
+    String shardName = mShardFormat.format(new Date(captureTime(name, System.currentTimeMillis())));
+
+    UsbFile shard = volume.shards.get(shardName);
+    Set<String> names = volume.shardNames.get(shardName);
+    if (shard == null) {
+      if (volume.photoDirectory == null) {
+        volume.photoDirectory = openDirectory(volume.fileSystem.getRootDirectory(), PHOTO_DIRECTORY);
+      }
+      shard = openDirectory(volume.photoDirectory, shardName);
+      names = new HashSet<>();
+      for (String existing : shard.list()) {
+        names.add(existing.toLowerCase(Locale.US));
       }
-    } else {
-      Log.d(TAG, "No USB drive detected!");
+      volume.shards.put(shardName, shard);
+      volume.shardNames.put(shardName, names);
+    }
+
+    // A file of the same name from an earlier event on this drive must not be overwritten.
+    String unique = name;
+    int dot = name.lastIndexOf('.');
+    String base = dot < 0 ? name : name.substring(0, dot);
+    String extension = dot < 0 ? "" : name.substring(dot);
+    for (int suffix = 1; names.contains(unique.toLowerCase(Locale.US)); suffix++) {
+      unique = base + "_" + suffix + extension;
     }
+    UsbFile file = shard.createFile(unique);
+    names.add(unique.toLowerCase(Locale.US));
+    return file;
   }
 
-  private String getDate() {
-    Date date = new Date();
-    return "" + date.getTime();
+  private static UsbFile openDirectory(UsbFile parent, String name) throws IOException {
+    UsbFile directory = parent.search(name);
+    return directory != null ? directory : parent.createDirectory(name);
+  }
+
+  /**
+   * Allocate all clusters up front, then write the data in large cluster-aligned chunks. The data is
+   * copied through one reusable buffer, so libaums always gets an array-backed buffer for its bulk
+   * transfers, even when the source is a mapped file.
+   */
+  private void writeAligned(FileSystem fileSystem, UsbFile file, ByteBuffer source) throws IOException {
+    int length = source.remaining();
+    file.setLength(length);
+
+    int cluster = Math.max(512, fileSystem.getChunkSize());
+    int chunk = Math.max(1, WRITE_BUFFER_SIZE / cluster) * cluster;
+    if (mWriteBuffer == null || mWriteBuffer.capacity() != chunk) {
+      // Heap buffer, libaums needs the backing array.
+      mWriteBuffer = ByteBuffer.allocate(chunk);
+    }
+
+    long offset = 0;
+    int limit = source.limit();
+    while (source.hasRemaining()) {
+      int count = Math.min(chunk, source.remaining());
+      source.limit(source.position() + count);
+      mWriteBuffer.clear();
+      mWriteBuffer.put(source);
+      mWriteBuffer.flip();
+      source.limit(limit);
+      file.write(offset, mWriteBuffer);
+      offset += count;
+    }
+  }
+
+  private String recordThroughput(String label, long bytes, long nanos) {
+    long[] total = mThroughput.get(label);
+    if (total == null) {
+      total = new long[2];
+      mThroughput.put(label, total);
+    }
+    total[0] += bytes;
+    total[1] += nanos;
+    // Bytes per microsecond is the same as MB/s.
+    return String.format(Locale.US, "%.2f MB/s, %.2f MB/s average",
+        bytes * 1000.0 / Math.max(1, nanos), total[0] * 1000.0 / Math.max(1, total[1]));
+  }
+
+  /**
+   * Average write speed of the given volume in MB/s, or 0 if nothing was written to it yet.
+   */
+  public synchronized double getWriteSpeed(String volumeLabel) {
+    long[] total = mThroughput.get(volumeLabel);
+    return total == null ? 0 : total[0] * 1000.0 / Math.max(1, total[1]);
+  }
+
+  /**
+   * Epoch millis, but never the same twice, so two captures in the same millisecond keep both files.
+   */
+  private synchronized String getDate() {
+    long name = Math.max(new Date().getTime(), mLastName + 1);
+    mLastName = name;
+    return "" + name;
   }
 }
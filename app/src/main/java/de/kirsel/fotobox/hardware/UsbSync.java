@@ -0,0 +1,123 @@
+package de.kirsel.fotobox.hardware;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background worker that copies staged captures from the {@link StagingStore} to the USB drive in
+ * batches. If the drive is missing or a write fails, it tries again later, or right away once
+ * {@link #onStorageAttached()} is called. A capture that can't be read from the flash is retried the
+ * same way, and only put into quarantine after {@value #MAX_READ_FAILURES} attempts, it is never
+ * dropped.
+ */
+public class UsbSync {
+  private static final String TAG = UsbSync.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 8;
+  private static final long RETRY_DELAY_SECONDS = 10;
+  private static final int MAX_READ_FAILURES = 3;
+
+  private final StagingStore mStaging;
+  private final StorageSink mDrive;
+  private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+  private boolean mScheduled;
+  // Failed reads per staged file, only touched on the sync thread.
+  private final Map<String, Integer> mReadFailures = new HashMap<>();
+
+  public UsbSync(StagingStore staging, StorageSink drive) {
+    mStaging = staging;
+    mDrive = drive;
+    mStaging.setOnStagedListener(new Runnable() {
+      @Override public void run() {
+        requestSync();
+      }
+    });
+  }
+
+  /**
+   * Copy everything that is staged, as soon as possible.
+   */
+  public synchronized void requestSync() {
+    if (!mScheduled && !mExecutor.isShutdown()) {
+      mScheduled = true;
+      mExecutor.execute(mSync);
+    }
+  }
+
+  /**
+   * A drive became available, retry right away instead of waiting for the next attempt.
+   */
+  public void onStorageAttached() {
+    requestSync();
+  }
+
+  /**
+   * Captures still waiting for the drive.
+   */
+  public int getBacklogCount() {
+    return mStaging.getBacklogCount();
+  }
+
+  public void shutDown() {
+    mExecutor.shutdownNow();
+  }
+
+  private final Runnable mSync = new Runnable() {
+    @Override public void run() {
+      synchronized (UsbSync.this) {
+        mScheduled = false;
+      }
+      List<String> batch;
+      while (!(batch = mStaging.nextBatch(BATCH_SIZE)).isEmpty()) {
+        List<String> synced = new ArrayList<>(batch.size());
+        boolean failed = false;
+        for (String name : batch) {
+          ByteBuffer jpeg = mStaging.read(name);
+          if (jpeg == null) {
+            // Keep going with the rest of the batch, but come back for this one later.
+            onReadFailed(name);
+            failed = true;
+          } else if (mDrive.saveJpeg(name, jpeg)) {
+            mReadFailures.remove(name);
+            synced.add(name);
+          } else {
+            failed = true;
+            break;
+          }
+        }
+        // One index update per batch instead of per file.
+        mStaging.markSynced(synced);
+        if (failed) {
+          Log.d(TAG, "USB sync failed, " + mStaging.getBacklogCount() + " captures waiting");
+          synchronized (UsbSync.this) {
+            if (!mScheduled && !mExecutor.isShutdown()) {
+              mScheduled = true;
+              mExecutor.schedule(this, RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+            }
+          }
+          return;
+        }
+      }
+      Log.d(TAG, "USB sync done");
+    }
+  };
+
+  private void onReadFailed(String name) {
+    Integer failures = mReadFailures.get(name);
+    failures = failures == null ? 1 : failures + 1;
+    if (failures < MAX_READ_FAILURES) {
+      Log.w(TAG, "Could not read capture " + name + ", attempt " + failures);
+      mReadFailures.put(name, failures);
+    } else {
+      mReadFailures.remove(name);
+      mStaging.quarantine(name);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package de.kirsel.fotobox.utilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Dithers and encodes an image for the printer in bands of {@link RasterEncoder#BAND_HEIGHT} rows,
+ * spread over the threads of an executor. Finished bands are handed to a {@link BandSink} in order
+ * while later bands are still being processed, so printing starts right away.
+ *
+ * <p>Threshold and ordered dithering only look at a single pixel, so every band is dithered on its own.
+ * Error diffusion carries the error from one row into the next, so those bands are dithered one after
+ * the other on a single thread and only their encoding runs in parallel. This gives exactly the same
+ * dots as dithering the whole image in one go.
+ */
+public class BandPipeline {
+
+  public interface BandSink {
+    void onBand(ByteBuffer band) throws IOException;
+  }
+
+  private final ExecutorService mExecutor;
+
+  /**
+   * @param executor needs at least two threads, one of them is busy scheduling the bands
+   */
+  public BandPipeline(ExecutorService executor) {
+    mExecutor = executor;
+  }
+
+  /**
+   * Dither the ARGB pixels in place and pass the encoded bands to the sink. Blocks until the last
+   * band was handed over.
+   */
+  public void process(final int[] pixels, final int width, final int height, final Ditherer.Mode mode,
+      BandSink sink) throws IOException {
+    final BlockingQueue<Future<ByteBuffer>> bands = new LinkedBlockingQueue<>();
+    final int bandCount = (height + RasterEncoder.BAND_HEIGHT - 1) / RasterEncoder.BAND_HEIGHT;
+
+    Future<?> scheduler = mExecutor.submit(new Runnable() {
+      @Override public void run() {
+        Ditherer sequential = mode == Ditherer.Mode.FLOYD_STEINBERG ? new Ditherer(mode, width) : null;
+        for (int band = 0; band < bandCount; band++) {
+          final int row = band * RasterEncoder.BAND_HEIGHT;
+          if (sequential != null) {
+            ditherBand(sequential, pixels, width, height, row);
+            bands.add(mExecutor.submit(new Callable<ByteBuffer>() {
+              @Override public ByteBuffer call() {
+                return new RasterEncoder().encodeBand(pixels, width, height, row);
+              }
+            }));
+          } else {
+            bands.add(mExecutor.submit(new Callable<ByteBuffer>() {
+              @Override public ByteBuffer call() {
+                ditherBand(new Ditherer(mode, width), pixels, width, height, row);
+                return new RasterEncoder().encodeBand(pixels, width, height, row);
+              }
+            }));
+          }
+        }
+      }
+    });
+
+    try {
+      for (int band = 0; band < bandCount; band++) {
+        sink.onBand(bands.take().get());
+      }
+      scheduler.get();
+    } catch (InterruptedException e) {
+      scheduler.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while encoding bands", e);
+    } catch (ExecutionException e) {
+      scheduler.cancel(true);
+      throw new IOException("Could not encode band", e.getCause());
+    }
+  }
+
+  private static void ditherBand(Ditherer ditherer, int[] pixels, int width, int height, int row) {
+    int end = Math.min(height, row + RasterEncoder.BAND_HEIGHT);
+    for (int y = row; y < end; y++) {
+      ditherer.ditherRow(pixels, y * width, y, pixels, y * width);
+    }
+  }
+}
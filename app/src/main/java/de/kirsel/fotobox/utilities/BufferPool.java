@@ -0,0 +1,216 @@
+package de.kirsel.fotobox.utilities;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the large buffers of capture, conversion and printing around for the next picture, so they
+ * are not allocated and collected again for every shot. Buffers are looked up by size: a request is
+ * served by the smallest pooled buffer that fits, as long as it is less than twice the requested size.
+ */
+public class BufferPool {
+  private static final String TAG = BufferPool.class.getSimpleName();
+
+  // Upper bounds for the memory held by each kind of buffer. Enough for a full save queue of camera
+  // JPEGs, the pixels of a print and a few decoded pictures, the rest is left to the system.
+  private static final long MAX_POOLED_BYTE_BUFFERS = 16L * 1024 * 1024;
+  private static final long MAX_POOLED_INT_ARRAYS = 4L * 1024 * 1024;
+  private static final long MAX_POOLED_BITMAPS = 16L * 1024 * 1024;
+
+  private final Pool<ByteBuffer> mByteBuffers = new Pool<ByteBuffer>("ByteBuffer", MAX_POOLED_BYTE_BUFFERS) {
+    @Override int size(ByteBuffer buffer) {
+      return buffer.capacity();
+    }
+  };
+
+  private final Pool<int[]> mIntArrays = new Pool<int[]>("int[]", MAX_POOLED_INT_ARRAYS) {
+    @Override int size(int[] array) {
+      return array.length * 4;
+    }
+  };
+
+  private final Pool<Bitmap> mBitmaps = new Pool<Bitmap>("Bitmap", MAX_POOLED_BITMAPS) {
+    @Override int size(Bitmap bitmap) {
+      return bitmap.getAllocationByteCount();
+    }
+
+    @Override void drop(Bitmap bitmap) {
+      bitmap.recycle();
+    }
+  };
+
+  // Lazy-loaded singleton, so all stages share the same pool.
+  private BufferPool() {
+  }
+
+  private static class InstanceHolder {
+    private static BufferPool mPool = new BufferPool();
+  }
+
+  public static BufferPool getInstance() {
+    return InstanceHolder.mPool;
+  }
+
+  /**
+   * A cleared direct buffer with at least {@code capacity} bytes and its limit set to {@code capacity}.
+   */
+  public ByteBuffer acquireByteBuffer(int capacity) {
+    ByteBuffer buffer = mByteBuffers.acquire(capacity);
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(capacity);
+    }
+    buffer.clear();
+    buffer.limit(capacity);
+    return buffer;
+  }
+
+  public void releaseByteBuffer(ByteBuffer buffer) {
+    if (buffer != null && buffer.isDirect()) {
+      mByteBuffers.release(buffer);
+    }
+  }
+
+  /**
+   * An array with at least {@code length} elements, its content is undefined.
+   */
+  public int[] acquireIntArray(int length) {
+    int[] array = mIntArrays.acquire(length * 4);
+    return array != null ? array : new int[length];
+  }
+
+  public void releaseIntArray(int[] array) {
+    if (array != null) {
+      mIntArrays.release(array);
+    }
+  }
+
+  /**
+   * A bitmap whose memory can hold {@code byteCount} bytes, meant for {@code BitmapFactory.Options.inBitmap}
+   * or {@link Bitmap#reconfigure}, or null if none is pooled.
+   */
+  public Bitmap acquireBitmap(int byteCount) {
+    return mBitmaps.acquire(byteCount);
+  }
+
+  /**
+   * A mutable bitmap of exactly the given size and config, reusing pooled memory if possible.
+   */
+  public Bitmap acquireBitmap(int width, int height, Bitmap.Config config) {
+    int bytesPerPixel = config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+    Bitmap bitmap = mBitmaps.acquire(width * height * bytesPerPixel);
+    if (bitmap == null) {
+      return Bitmap.createBitmap(width, height, config);
+    }
+    bitmap.reconfigure(width, height, config);
+    return bitmap;
+  }
+
+  public void releaseBitmap(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled()) {
+      return;
+    }
+    if (!bitmap.isMutable()) {
+      // Only mutable bitmaps can be reused for decoding.
+      bitmap.recycle();
+      return;
+    }
+    mBitmaps.release(bitmap);
+  }
+
+  /**
+   * Give all pooled memory back, e.g. when the system runs low on memory. Buffers that are in use are
+   * pooled again when they are released.
+   */
+  public void trim() {
+    long bytes = mByteBuffers.clear() + mIntArrays.clear() + mBitmaps.clear();
+    Log.d(TAG, "Trimmed " + bytes + " pooled bytes");
+  }
+
+  /**
+   * Log hit and miss counts of all pools.
+   */
+  public void logStats() {
+    Log.d(TAG, mByteBuffers.toString());
+    Log.d(TAG, mIntArrays.toString());
+    Log.d(TAG, mBitmaps.toString());
+  }
+
+  private abstract static class Pool<T> {
+    private final String mName;
+    private final long mMaxBytes;
+    private final TreeMap<Integer, ArrayDeque<T>> mEntries = new TreeMap<>();
+    private long mPooledBytes;
+    private int mHits;
+    private int mMisses;
+
+    Pool(String name, long maxBytes) {
+      mName = name;
+      mMaxBytes = maxBytes;
+    }
+
+    abstract int size(T item);
+
+    /**
+     * Free an item that is not pooled.
+     */
+    void drop(T item) {
+    }
+
+    synchronized T acquire(int size) {
+      Map.Entry<Integer, ArrayDeque<T>> entry = mEntries.ceilingEntry(size);
+      // Don't hand out buffers that would waste more than half of their memory.
+      if (entry == null || entry.getKey() / 2 > size) {
+        mMisses++;
+        return null;
+      }
+      T item = entry.getValue().poll();
+      if (entry.getValue().isEmpty()) {
+        mEntries.remove(entry.getKey());
+      }
+      mPooledBytes -= entry.getKey();
+      mHits++;
+      return item;
+    }
+
+    synchronized void release(T item) {
+      int size = size(item);
+      if (mPooledBytes + size > mMaxBytes) {
+        Log.d(TAG, mName + " pool full, dropping " + size + " bytes");
+        drop(item);
+        return;
+      }
+      ArrayDeque<T> items = mEntries.get(size);
+      if (items == null) {
+        items = new ArrayDeque<>();
+        mEntries.put(size, items);
+      }
+      items.push(item);
+      mPooledBytes += size;
+    }
+
+    /**
+     * Drop all pooled items.
+     *
+     * @return the number of bytes that were pooled
+     */
+    synchronized long clear() {
+      for (ArrayDeque<T> items : mEntries.values()) {
+        for (T item : items) {
+          drop(item);
+        }
+      }
+      mEntries.clear();
+      long bytes = mPooledBytes;
+      mPooledBytes = 0;
+      return bytes;
+    }
+
+    @Override public synchronized String toString() {
+      return mName + " pool: " + mHits + " hits, " + mMisses + " misses, " + mPooledBytes + " bytes pooled";
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package de.kirsel.fotobox.utilities;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Composes several captures into one photo strip or grid, with an optional frame overlay and a
+ * caption. Every capture is decoded in small tiles at the resolution of its cell, so only the
+ * finished collage and a single tile are ever held in memory, whatever the camera resolution.
+ */
+public class CollageCompositor {
+  private static final String TAG = CollageCompositor.class.getSimpleName();
+
+  // Edge length of one decoded tile in collage pixels.
+  private static final int TILE_SIZE = 256;
+
+  /**
+   * Size of the collage and how the captures are arranged on it, all in pixels.
+   */
+  public static class Layout {
+    final int columns;
+    final int rows;
+    final int width;
+    final int height;
+    final int margin;
+    final int footer;
+
+    public Layout(int columns, int rows, int width, int height, int margin, int footer) {
+      this.columns = columns;
+      this.rows = rows;
+      this.width = width;
+      this.height = height;
+      this.margin = margin;
+      this.footer = footer;
+    }
+
+    /**
+     * A 2x6 inch strip with the captures below each other, like the classic photo booth.
+     */
+    public static Layout strip(int count, int dpi) {
+      return new Layout(1, count, 2 * dpi, 6 * dpi, dpi / 10, dpi / 2);
+    }
+
+    /**
+     * A 6x4 inch print with the captures in a grid as square as possible.
+     */
+    public static Layout grid(int count, int dpi) {
+      int columns = (int) Math.ceil(Math.sqrt(count));
+      int rows = (count + columns - 1) / columns;
+      return new Layout(columns, rows, 6 * dpi, 4 * dpi, dpi / 10, dpi / 3);
+    }
+
+    int cellCount() {
+      return columns * rows;
+    }
+
+    Rect cell(int index) {
+      int cellWidth = (width - (columns + 1) * margin) / columns;
+      int cellHeight = (height - footer - (rows + 1) * margin) / rows;
+      int left = margin + (index % columns) * (cellWidth + margin);
+      int top = margin + (index / columns) * (cellHeight + margin);
+      return new Rect(left, top, left + cellWidth, top + cellHeight);
+    }
+  }
+
+  private final Layout mLayout;
+  private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private Bitmap mOverlay;
+  private String mCaption;
+  private int mBackground = Color.WHITE;
+
+  public CollageCompositor(Layout layout) {
+    mLayout = layout;
+    mTextPaint.setColor(Color.BLACK);
+    mTextPaint.setTextAlign(Paint.Align.CENTER);
+    mTextPaint.setTextSize(layout.footer / 2);
+  }
+
+  /**
+   * A frame drawn over the whole collage, scaled to its size. Transparent areas show the captures.
+   */
+  public void setOverlay(Bitmap overlay) {
+    mOverlay = overlay;
+  }
+
+  /**
+   * Text printed centered in the footer.
+   */
+  public void setCaption(String caption) {
+    mCaption = caption;
+  }
+
+  public void setBackgroundColor(int color) {
+    mBackground = color;
+  }
+
+  /**
+   * Compose the JPEGs into a new collage, filling the cells in order. Extra JPEGs are ignored, cells
+   * without one stay empty. The positions of the buffers are left untouched.
+   *
+   * @return the collage, which can be given back to the {@link BufferPool}
+   */
+  public Bitmap compose(List<ByteBuffer> jpegs) {
+    Bitmap collage = BufferPool.getInstance().acquireBitmap(mLayout.width, mLayout.height, Bitmap.Config.ARGB_8888);
+    Canvas canvas = new Canvas(collage);
+    canvas.drawColor(mBackground);
+
+    int count = Math.min(jpegs.size(), mLayout.cellCount());
+    for (int i = 0; i < count; i++) {
+      drawTiled(canvas, jpegs.get(i), mLayout.cell(i));
+    }
+
+    if (mOverlay != null) {
+      canvas.drawBitmap(mOverlay, null, new Rect(0, 0, mLayout.width, mLayout.height), mPaint);
+    }
+    if (mCaption != null && mLayout.footer > 0) {
+      float baseline = mLayout.height - (mLayout.footer - mTextPaint.getTextSize()) / 2;
+      canvas.drawText(mCaption, mLayout.width / 2f, baseline, mTextPaint);
+    }
+    return collage;
+  }
+
+  /**
+   * Draw the JPEG center-cropped into the cell, one tile after the other.
+   */
+  private void drawTiled(Canvas canvas, ByteBuffer jpeg, Rect cell) {
+    BitmapRegionDecoder decoder;
+    try {
+      decoder = BitmapRegionDecoder.newInstance(new DerivativeDecoder.ByteBufferInputStream(jpeg), false);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not decode capture for the collage", e);
+      return;
+    }
+
+    // The part of the capture with the aspect ratio of the cell.
+    int sourceWidth = decoder.getWidth();
+    int sourceHeight = decoder.getHeight();
+    Rect crop;
+    if ((long) sourceWidth * cell.height() > (long) sourceHeight * cell.width()) {
+      int width = (int) ((long) sourceHeight * cell.width() / cell.height());
+      crop = new Rect((sourceWidth - width) / 2, 0, (sourceWidth + width) / 2, sourceHeight);
+    } else {
+      int height = (int) ((long) sourceWidth * cell.height() / cell.width());
+      crop = new Rect(0, (sourceHeight - height) / 2, sourceWidth, (sourceHeight + height) / 2);
+    }
+    float scale = (float) crop.width() / cell.width();
+
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = DerivativeDecoder.sampleSize(crop.width(), cell.width());
+    options.inMutable = true;
+    // A tile decodes to at most twice its size in the collage, because of the power of two sampling.
+    int maxTile = 2 * TILE_SIZE + 2;
+    BufferPool pool = BufferPool.getInstance();
+    Bitmap tile = pool.acquireBitmap(maxTile, maxTile, Bitmap.Config.ARGB_8888);
+
+    Rect source = new Rect();
+    Rect target = new Rect();
+    Rect decoded = new Rect();
+    for (int y = 0; y < cell.height(); y += TILE_SIZE) {
+      for (int x = 0; x < cell.width(); x += TILE_SIZE) {
+        target.set(cell.left + x, cell.top + y, cell.left + Math.min(x + TILE_SIZE, cell.width()),
+            cell.top + Math.min(y + TILE_SIZE, cell.height()));
+        source.set(crop.left + Math.round(x * scale), crop.top + Math.round(y * scale),
+            Math.min(crop.right, crop.left + Math.round((target.right - cell.left) * scale)),
+            Math.min(crop.bottom, crop.top + Math.round((target.bottom - cell.top) * scale)));
+        if (source.isEmpty()) {
+          continue;
+        }
+        // The decoder fills the reused bitmap from its top left corner, so it must have exactly the
+        // decoded size, otherwise stale pixels of the previous tile get drawn too.
+        int width = (source.width() + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (source.height() + options.inSampleSize - 1) / options.inSampleSize;
+        tile.reconfigure(Math.min(width, maxTile), Math.min(height, maxTile), Bitmap.Config.ARGB_8888);
+        options.inBitmap = tile;
+        Bitmap result = decoder.decodeRegion(source, options);
+        if (result != null) {
+          decoded.set(0, 0, Math.min(width, result.getWidth()), Math.min(height, result.getHeight()));
+          canvas.drawBitmap(result, decoded, target, mPaint);
+          if (result != tile) {
+            // The decoder could not reuse the tile and made a new bitmap.
+            result.recycle();
+          }
+        }
+      }
+    }
+    decoder.recycle();
+    pool.releaseBitmap(tile);
+  }
+}
@@ -0,0 +1,126 @@
+package de.kirsel.fotobox.utilities;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes smaller versions of a camera JPEG for the printer or a screen, without ever decoding the
+ * full resolution image. Uses the embedded EXIF thumbnail if it is large enough, otherwise lets the
+ * JPEG decoder skip pixels with {@code inSampleSize}.
+ */
+public class DerivativeDecoder {
+  private static final String TAG = DerivativeDecoder.class.getSimpleName();
+
+  /**
+   * Decode the JPEG to exactly {@code width} pixels wide, keeping the aspect ratio. The position of
+   * the buffer is left untouched.
+   *
+   * @return the bitmap, or null if the JPEG could not be decoded
+   */
+  public static Bitmap decodeToWidth(ByteBuffer jpeg, int width) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      Log.w(TAG, "Not a decodable JPEG");
+      return null;
+    }
+    int height = Math.max(1, Math.round((float) options.outHeight * width / options.outWidth));
+
+    BufferPool pool = BufferPool.getInstance();
+    Bitmap bitmap = decodeThumbnail(jpeg, width);
+    if (bitmap == null) {
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = sampleSize(options.outWidth, width);
+      options.inMutable = true;
+      int decodedWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+      int decodedHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+      options.inBitmap = pool.acquireBitmap(decodedWidth * decodedHeight * 4);
+      try {
+        bitmap = BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+      } catch (IllegalArgumentException e) {
+        // The pooled bitmap did not fit after all, decode into a new one.
+        pool.releaseBitmap(options.inBitmap);
+        options.inBitmap = null;
+        bitmap = BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+      }
+      if (bitmap == null) {
+        return null;
+      }
+    }
+    if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+      return bitmap;
+    }
+    Bitmap scaled = pool.acquireBitmap(width, height, Bitmap.Config.ARGB_8888);
+    new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+    pool.releaseBitmap(bitmap);
+    return scaled;
+  }
+
+  /**
+   * Largest power of two the image can be subsampled by and still be at least {@code targetWidth} wide.
+   */
+  public static int sampleSize(int sourceWidth, int targetWidth) {
+    int sampleSize = 1;
+    while (sourceWidth / (sampleSize * 2) >= targetWidth) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private static Bitmap decodeThumbnail(ByteBuffer jpeg, int width) {
+    try {
+      ExifInterface exif = new ExifInterface(new ByteBufferInputStream(jpeg));
+      byte[] thumbnail = exif.getThumbnail();
+      if (thumbnail == null) {
+        return null;
+      }
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+      if (options.outWidth < width) {
+        return null;
+      }
+      return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+    } catch (IOException e) {
+      Log.d(TAG, "Could not read EXIF thumbnail", e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads a {@link ByteBuffer} without copying it into an array first.
+   */
+  static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      mBuffer = buffer.duplicate();
+    }
+
+    @Override public int read() {
+      return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (!mBuffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, mBuffer.remaining());
+      mBuffer.get(b, off, len);
+      return len;
+    }
+
+    @Override public int available() {
+      return mBuffer.remaining();
+    }
+  }
+}
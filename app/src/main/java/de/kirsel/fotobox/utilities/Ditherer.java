@@ -0,0 +1,104 @@
+package de.kirsel.fotobox.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Turns ARGB rows into black and white rows, one row at a time, so only the current row and the
+ * error of the next row have to be kept in memory.
+ */
+public class Ditherer {
+
+  public enum Mode {
+    // Every pixel is compared against the middle grey.
+    THRESHOLD,
+    // 4x4 Bayer matrix, fast and stable for repeated prints.
+    ORDERED,
+    // Floyd-Steinberg error diffusion, best for photos.
+    FLOYD_STEINBERG
+  }
+
+  public static final int BLACK = 0xFF000000;
+  public static final int WHITE = 0xFFFFFFFF;
+
+  private static final int THRESHOLD = 128;
+
+  private static final int[] BAYER_4X4 = {
+      0, 8, 2, 10,
+      12, 4, 14, 6,
+      3, 11, 1, 9,
+      15, 7, 13, 5
+  };
+
+  private final Mode mMode;
+  private final int mWidth;
+
+  // Error diffused into the current and the next row, with one pixel of padding on both sides.
+  private int[] mErrorCurrent;
+  private int[] mErrorNext;
+
+  public Ditherer(Mode mode, int width) {
+    mMode = mode;
+    mWidth = width;
+    if (mode == Mode.FLOYD_STEINBERG) {
+      mErrorCurrent = new int[width + 2];
+      mErrorNext = new int[width + 2];
+    }
+  }
+
+  /**
+   * Luminance of an ARGB color in the range 0..255.
+   */
+  public static int luminance(int color) {
+    return (((color >> 16) & 0xff) * 77 + ((color >> 8) & 0xff) * 150 + (color & 0xff) * 29) >> 8;
+  }
+
+  /**
+   * Dither row {@code y} of the image. Rows have to be passed in order from the top for error
+   * diffusion. {@code in} and {@code out} may be the same array.
+   */
+  public void ditherRow(int[] in, int inOffset, int y, int[] out, int outOffset) {
+    switch (mMode) {
+      case THRESHOLD:
+        for (int x = 0; x < mWidth; x++) {
+          out[outOffset + x] = luminance(in[inOffset + x]) < THRESHOLD ? BLACK : WHITE;
+        }
+        break;
+      case ORDERED:
+        int matrixRow = (y & 3) << 2;
+        for (int x = 0; x < mWidth; x++) {
+          int threshold = (BAYER_4X4[matrixRow + (x & 3)] * 16) + 8;
+          out[outOffset + x] = luminance(in[inOffset + x]) < threshold ? BLACK : WHITE;
+        }
+        break;
+      case FLOYD_STEINBERG:
+        int[] error = mErrorCurrent;
+        int[] next = mErrorNext;
+        for (int x = 0; x < mWidth; x++) {
+          int value = luminance(in[inOffset + x]) + (error[x + 1] >> 4);
+          int quantized = value < THRESHOLD ? 0 : 255;
+          out[outOffset + x] = quantized == 0 ? BLACK : WHITE;
+          int diff = value - quantized;
+          // Errors are kept in 1/16 units: 7 right, 3 down left, 5 down, 1 down right.
+          error[x + 2] += diff * 7;
+          next[x] += diff * 3;
+          next[x + 1] += diff * 5;
+          next[x + 2] += diff;
+        }
+        // The next row becomes the current one.
+        mErrorCurrent = next;
+        mErrorNext = error;
+        Arrays.fill(mErrorNext, 0);
+        break;
+    }
+  }
+
+  /**
+   * Forget the error carried over from previous rows, e.g. before starting a new image.
+   */
+  public void reset() {
+    if (mErrorCurrent != null) {
+      Arrays.fill(mErrorCurrent, 0);
+      Arrays.fill(mErrorNext, 0);
+    }
+  }
+}
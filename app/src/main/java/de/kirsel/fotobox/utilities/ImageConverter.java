@@ -1,11 +1,6 @@
 package de.kirsel.fotobox.utilities;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
 
 /**
  * Created by simonvandeloo on 17.01.18.
@@ -13,37 +8,41 @@ import android.graphics.Paint;
 
 public class ImageConverter {
 
-  // TODO: Implement correct funktionality
-
-  public static Bitmap convertBitmapToMonochrome(Bitmap original, int width, int height) {
+  /**
+   * Scale the image to {@code width} x {@code height} and convert it to black and white with the
+   * given dithering mode.
+   */
+  public static Bitmap convertBitmapToMonochrome(Bitmap original, int width, int height, Ditherer.Mode mode) {
+    // Scale first, so dithering runs on the dots that are actually printed.
+    Bitmap scaled = original;
+    if (original.getWidth() != width || original.getHeight() != height) {
+      scaled = Bitmap.createScaledBitmap(original, width, height, true);
+    }
     Bitmap bmpMonochrome = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-    Canvas canvas = new Canvas(bmpMonochrome);
-    ColorMatrix ma = new ColorMatrix();
-    ma.setSaturation(0);
-    Paint paint = new Paint();
-    paint.setColorFilter(new ColorMatrixColorFilter(ma));
-    canvas.drawBitmap(original, 0, 0, paint);
 
-    int width2 = bmpMonochrome.getWidth();
-    int height2 = bmpMonochrome.getHeight();
-
-    int[] pixels = new int[width2 * height2];
-    bmpMonochrome.getPixels(pixels, 0, width2, 0, 0, width2, height2);
-
-    // Iterate over height
-    for (int y = 0; y < height2; y++) {
-      int offset = y * height2;
-      // Iterate over width
-      for (int x = 0; x < width2; x++) {
-        int pixel = bmpMonochrome.getPixel(x, y);
-        int lowestBit = pixel & 0xff;
-        if (lowestBit < 128) {
-          bmpMonochrome.setPixel(x, y, Color.BLACK);
-        } else {
-          bmpMonochrome.setPixel(x, y, Color.WHITE);
-        }
-      }
+    // Work one row at a time to keep the extra memory down to a single row.
+    Ditherer ditherer = new Ditherer(mode, width);
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      scaled.getPixels(row, 0, width, 0, y, width, 1);
+      ditherer.ditherRow(row, 0, y, row, 0);
+      bmpMonochrome.setPixels(row, 0, width, 0, y, width, 1);
+    }
+    if (scaled != original) {
+      scaled.recycle();
     }
     return bmpMonochrome;
   }
+
+  public static Bitmap convertBitmapToMonochrome(Bitmap original, int width, int height) {
+    return convertBitmapToMonochrome(original, width, height, Ditherer.Mode.THRESHOLD);
+  }
+
+  /**
+   * Scale the image to the dot width of the printer, keeping its aspect ratio, and dither it.
+   */
+  public static Bitmap convertForPrinter(Bitmap original, int dotWidth, Ditherer.Mode mode) {
+    int height = Math.max(1, Math.round((float) original.getHeight() * dotWidth / original.getWidth()));
+    return convertBitmapToMonochrome(original, dotWidth, height, mode);
+  }
 }
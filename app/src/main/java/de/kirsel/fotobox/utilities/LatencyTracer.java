@@ -0,0 +1,239 @@
+package de.kirsel.fotobox.utilities;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records when each stage of a capture is reached, from the button press until the photo is on the
+ * drive or printed. Every button press starts a trace that keeps its own timestamps, and each stage is
+ * measured from a fixed earlier stage of the same trace, see {@link Stage}. Stages that run on other
+ * threads and may finish after the next button press, like the copy to the drive, mark the trace they
+ * were {@link #attach attached} to instead of the current one. Times come from the monotonic clock and
+ * are kept per stage in a histogram. Every mark is appended to a CSV file on a background thread, the
+ * histograms are written to logcat with {@link #dump()} and every {@value #DUMP_INTERVAL} traces:
+ *
+ * <pre>
+ * adb logcat -s LatencyTracer
+ * adb pull /data/data/de.kirsel.fotobox/files/latency.csv
+ * </pre>
+ */
+public class LatencyTracer {
+  private static final String TAG = LatencyTracer.class.getSimpleName();
+
+  /**
+   * The stages of a capture and the stage each one is measured from. A stage that is reached several
+   * times in a trace, like the images of a burst, is measured from the latest mark of its predecessor.
+   */
+  public enum Stage {
+    KEY_UP(null),
+    COUNTDOWN_DONE(KEY_UP),
+    SESSION_CONFIGURED(COUNTDOWN_DONE),
+    CAPTURE_COMPLETED(COUNTDOWN_DONE),
+    IMAGE_AVAILABLE(COUNTDOWN_DONE),
+    DECODE(IMAGE_AVAILABLE),
+    STAGED(IMAGE_AVAILABLE),
+    WRITE(STAGED),
+    FSYNC(WRITE),
+    PRINT_DONE(DECODE);
+
+    private final Stage mFrom;
+
+    Stage(Stage from) {
+      mFrom = from;
+    }
+  }
+
+  // Histogram buckets are powers of two in milliseconds, the last one takes everything above.
+  private static final int BUCKETS = 18;
+  // Traces that can still be marked through a key, older ones are forgotten.
+  private static final int MAX_ATTACHED = 64;
+  private static final int DUMP_INTERVAL = 20;
+
+  /**
+   * The timestamps of one capture. Attached copies share the id and start, but not the later stages.
+   */
+  private static class Trace {
+    final int id;
+    final long[] stamps = new long[Stage.values().length];
+
+    Trace(int id) {
+      this.id = id;
+    }
+
+    Trace copy() {
+      Trace copy = new Trace(id);
+      System.arraycopy(stamps, 0, copy.stamps, 0, stamps.length);
+      return copy;
+    }
+  }
+
+  private final long[][] mHistograms = new long[Stage.values().length][BUCKETS];
+  private final long[] mMaxMillis = new long[Stage.values().length];
+  private final Map<Object, Trace> mAttached = new LinkedHashMap<Object, Trace>() {
+    @Override protected boolean removeEldestEntry(Map.Entry<Object, Trace> eldest) {
+      return size() > MAX_ATTACHED;
+    }
+  };
+  // Writes the CSV lines, so no file access happens on the threads being measured.
+  private final ExecutorService mWriterExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, TAG);
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+  private int mTraceId;
+  private Trace mCurrent;
+  private Writer mWriter;
+
+  // Lazy-loaded singleton, so all components write into the same trace.
+  private LatencyTracer() {
+  }
+
+  private static class InstanceHolder {
+    private static LatencyTracer mTracer = new LatencyTracer();
+  }
+
+  public static LatencyTracer getInstance() {
+    return InstanceHolder.mTracer;
+  }
+
+  /**
+   * Append every mark to the given CSV file from now on.
+   */
+  public void setOutputFile(final File file) {
+    mWriterExecutor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          boolean isNew = !file.exists();
+          mWriter = new FileWriter(file, true);
+          if (isNew) {
+            mWriter.write("trace,stage,since_start_ms,from,since_from_ms\n");
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Could not open " + file, e);
+          mWriter = null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Start a new trace at the button press.
+   */
+  public synchronized void begin() {
+    mCurrent = new Trace(++mTraceId);
+    record(mCurrent, Stage.KEY_UP, System.nanoTime());
+    if (mTraceId % DUMP_INTERVAL == 0) {
+      mWriterExecutor.execute(new Runnable() {
+        @Override public void run() {
+          dump();
+        }
+      });
+    }
+  }
+
+  /**
+   * The current capture reached the given stage.
+   */
+  public synchronized void mark(Stage stage) {
+    if (mCurrent != null) {
+      record(mCurrent, stage, System.nanoTime());
+    }
+  }
+
+  /**
+   * Remember the current capture under the given key, e.g. the file name of a photo, so later stages
+   * of it can be marked with {@link #mark(Stage, Object)} from any thread.
+   */
+  public synchronized void attach(Object key) {
+    if (mCurrent != null) {
+      mAttached.put(key, mCurrent.copy());
+    }
+  }
+
+  /**
+   * The capture attached to the given key reached the given stage. Unknown keys are ignored.
+   */
+  public synchronized void mark(Stage stage, Object key) {
+    Trace trace = mAttached.get(key);
+    if (trace != null) {
+      record(trace, stage, System.nanoTime());
+    }
+  }
+
+  private void record(Trace trace, Stage stage, long now) {
+    trace.stamps[stage.ordinal()] = now;
+    long start = trace.stamps[Stage.KEY_UP.ordinal()];
+    long from = stage.mFrom != null ? trace.stamps[stage.mFrom.ordinal()] : 0;
+    if (from == 0) {
+      // The predecessor was skipped, e.g. no new session had to be configured.
+      from = start;
+    }
+    long sinceStart = (now - start) / 1000000L;
+    long sinceFrom = (now - from) / 1000000L;
+
+    int bucket = 0;
+    while (bucket < BUCKETS - 1 && (1L << bucket) <= sinceFrom) {
+      bucket++;
+    }
+    mHistograms[stage.ordinal()][bucket]++;
+    mMaxMillis[stage.ordinal()] = Math.max(mMaxMillis[stage.ordinal()], sinceFrom);
+
+    final String line = trace.id + "," + stage + "," + sinceStart + "," + (stage.mFrom != null ? stage.mFrom : "")
+        + "," + sinceFrom + "\n";
+    mWriterExecutor.execute(new Runnable() {
+      @Override public void run() {
+        if (mWriter == null) {
+          return;
+        }
+        try {
+          mWriter.write(line);
+          mWriter.flush();
+        } catch (IOException e) {
+          Log.w(TAG, "Could not write trace", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Log count, median, 90th percentile and maximum of the time each stage took since its predecessor.
+   */
+  public synchronized void dump() {
+    for (Stage stage : Stage.values()) {
+      long[] histogram = mHistograms[stage.ordinal()];
+      long count = 0;
+      for (long c : histogram) {
+        count += c;
+      }
+      if (count == 0) {
+        continue;
+      }
+      Log.i(TAG, String.format(Locale.US, "%-18s n=%d p50<%dms p90<%dms max=%dms", stage, count,
+          percentile(histogram, count, 0.5), percentile(histogram, count, 0.9), mMaxMillis[stage.ordinal()]));
+    }
+  }
+
+  private static long percentile(long[] histogram, long count, double fraction) {
+    long threshold = (long) Math.ceil(count * fraction);
+    long seen = 0;
+    for (int bucket = 0; bucket < histogram.length; bucket++) {
+      seen += histogram[bucket];
+      if (seen >= threshold) {
+        return 1L << bucket;
+      }
+    }
+    return 1L << (histogram.length - 1);
+  }
+}
@@ -0,0 +1,406 @@
+package de.kirsel.fotobox.utilities;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal HTTP/1.1 server, so guests can download their photos from the box's hotspot. Only GET and
+ * HEAD are supported, one request per connection. Files are sent with {@link FileChannel#transferTo},
+ * single byte ranges and {@code If-None-Match} are honoured. Connections are handled by a bounded pool
+ * of low priority threads, so a crowd of phones never slows down the capture. When all threads are busy
+ * and the queue is full, new connections get a 503 and try again later. A download that is slower than
+ * {@value #MIN_BYTES_PER_SECOND} bytes per second is cut off, so stalled phones can't hold on to the
+ * threads. Try it with:
+ *
+ * <pre>
+ * curl -v -H "Range: bytes=0-99" http://localhost:8080/photo/1497110400000.JPEG
+ * </pre>
+ */
+public class PhotoServer {
+  private static final String TAG = PhotoServer.class.getSimpleName();
+
+  // Most of the time the threads only wait for slow phones, they are stopped again when idle.
+  private static final int THREADS = 32;
+  private static final long IDLE_SECONDS = 30;
+  // Connections waiting for a thread, more are turned away.
+  private static final int BACKLOG = 64;
+  private static final int READ_TIMEOUT_MILLIS = 5000;
+  // A response may take this long plus the time to send it at the minimum rate.
+  private static final long WRITE_TIMEOUT_MILLIS = 10000;
+  private static final long MIN_BYTES_PER_SECOND = 32 * 1024;
+  private static final int RETRY_AFTER_SECONDS = 5;
+  private static final int MAX_HEADER_LINES = 64;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /**
+   * Something that can be downloaded.
+   */
+  public interface Resource {
+    long length();
+
+    /**
+     * Changes whenever the content changes, without the quotes.
+     */
+    String etag();
+
+    String contentType();
+
+    /**
+     * Write {@code count} bytes starting at {@code offset} to the channel.
+     */
+    void transferTo(long offset, long count, WritableByteChannel target) throws IOException;
+  }
+
+  /**
+   * Looks up what to serve for a request path.
+   */
+  public interface Source {
+    /**
+     * @param path the request path without the leading slash and query
+     * @return the resource, or null for a 404
+     */
+    Resource find(String path) throws IOException;
+  }
+
+  private final int mPort;
+  private final Source mSource;
+  private ServerSocketChannel mServer;
+  private Thread mAcceptThread;
+  private ThreadPoolExecutor mExecutor;
+  // Closes connections that take too long to download, which wakes up their blocked thread.
+  private ScheduledExecutorService mWatchdog;
+
+  public PhotoServer(int port, Source source) {
+    mPort = port;
+    mSource = source;
+  }
+
+  public synchronized void start() throws IOException {
+    if (mServer != null) {
+      return;
+    }
+    mServer = ServerSocketChannel.open();
+    mServer.socket().setReuseAddress(true);
+    mServer.socket().bind(new InetSocketAddress(mPort));
+    mExecutor = new ThreadPoolExecutor(THREADS, THREADS, IDLE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(BACKLOG), new ThreadFactory() {
+          @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PhotoServer");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          }
+        });
+    mExecutor.allowCoreThreadTimeOut(true);
+    mWatchdog = Executors.newSingleThreadScheduledExecutor();
+    mAcceptThread = new Thread(mAccept, "PhotoServerAccept");
+    mAcceptThread.start();
+    Log.d(TAG, "Serving photos on port " + getPort());
+  }
+
+  /**
+   * The port the server listens on, which is picked by the system if 0 was given.
+   */
+  public synchronized int getPort() {
+    return mServer != null ? mServer.socket().getLocalPort() : mPort;
+  }
+
+  public synchronized void stop() {
+    if (mServer == null) {
+      return;
+    }
+    try {
+      mServer.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Error closing server socket", e);
+    }
+    mExecutor.shutdownNow();
+    mWatchdog.shutdownNow();
+    mServer = null;
+  }
+
+  private final Runnable mAccept = new Runnable() {
+    @Override public void run() {
+      ServerSocketChannel server;
+      synchronized (PhotoServer.this) {
+        server = mServer;
+      }
+      while (server != null && server.isOpen()) {
+        try {
+          final SocketChannel client = server.accept();
+          try {
+            mExecutor.execute(new Runnable() {
+              @Override public void run() {
+                handle(client);
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many connections, asking one to come back later");
+            reject(client);
+          }
+        } catch (ClosedChannelException e) {
+          break;
+        } catch (IOException e) {
+          Log.w(TAG, "Accept failed", e);
+        }
+      }
+    }
+  };
+
+  /**
+   * Answer with a 503 right from the accept thread. The response fits into the socket buffer, so this
+   * doesn't wait for the client.
+   */
+  private static void reject(SocketChannel client) {
+    try {
+      send(client, "HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + RETRY_AFTER_SECONDS
+          + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    } catch (IOException e) {
+      Log.d(TAG, "Could not reject connection: " + e);
+    } finally {
+      close(client);
+    }
+  }
+
+  private void handle(SocketChannel client) {
+    try {
+      client.socket().setSoTimeout(READ_TIMEOUT_MILLIS);
+      // The stream of a channel's socket honours the timeout, reads on the channel itself would not.
+      BufferedReader reader = new BufferedReader(new InputStreamReader(client.socket().getInputStream(), ASCII));
+      String requestLine = reader.readLine();
+      if (requestLine == null) {
+        return;
+      }
+      String range = null;
+      String ifNoneMatch = null;
+      String line;
+      for (int lines = 0; (line = reader.readLine()) != null && !line.isEmpty(); lines++) {
+        if (lines == MAX_HEADER_LINES) {
+          sendStatus(client, 431, "Request Header Fields Too Large");
+          return;
+        }
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+          String value = line.substring(colon + 1).trim();
+          if (name.equals("range")) {
+            range = value;
+          } else if (name.equals("if-none-match")) {
+            ifNoneMatch = value;
+          }
+        }
+      }
+
+      String[] parts = requestLine.split(" ");
+      if (parts.length != 3) {
+        sendStatus(client, 400, "Bad Request");
+        return;
+      }
+      boolean head = parts[0].equals("HEAD");
+      if (!head && !parts[0].equals("GET")) {
+        sendStatus(client, 405, "Method Not Allowed");
+        return;
+      }
+      String path = parts[1];
+      int query = path.indexOf('?');
+      if (query >= 0) {
+        path = path.substring(0, query);
+      }
+      if (!path.startsWith("/") || path.contains("..")) {
+        sendStatus(client, 400, "Bad Request");
+        return;
+      }
+
+      Resource resource = mSource.find(path.substring(1));
+      if (resource == null) {
+        sendStatus(client, 404, "Not Found");
+        return;
+      }
+      serve(client, resource, head, range, ifNoneMatch);
+    } catch (SocketTimeoutException e) {
+      Log.d(TAG, "Client too slow, closing connection");
+    } catch (IOException e) {
+      // Phones drop connections all the time, e.g. when the guest leaves the hotspot.
+      Log.d(TAG, "Connection failed: " + e);
+    } finally {
+      close(client);
+    }
+  }
+
+  private void serve(SocketChannel client, Resource resource, boolean head, String range, String ifNoneMatch)
+      throws IOException {
+    String etag = "\"" + resource.etag() + "\"";
+    long length = resource.length();
+    if (ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))) {
+      send(client, "HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\nConnection: close\r\n\r\n");
+      return;
+    }
+
+    long start = 0;
+    long end = length - 1;
+    boolean partial = false;
+    if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+      String spec = range.substring(6).trim();
+      int dash = spec.indexOf('-');
+      try {
+        if (dash == 0) {
+          // The last n bytes.
+          start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+        } else if (dash > 0) {
+          start = Long.parseLong(spec.substring(0, dash));
+          if (dash < spec.length() - 1) {
+            end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+          }
+        }
+        partial = dash >= 0;
+      } catch (NumberFormatException e) {
+        // An unparsable range is ignored and the whole file is sent.
+        start = 0;
+        end = length - 1;
+      }
+      if (partial && (start > end || start >= length)) {
+        send(client, "HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length
+            + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+        return;
+      }
+    }
+
+    long count = end - start + 1;
+    StringBuilder header = new StringBuilder();
+    header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+    header.append("Content-Type: ").append(resource.contentType()).append("\r\n");
+    header.append("Content-Length: ").append(count).append("\r\n");
+    if (partial) {
+      header.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length)
+          .append("\r\n");
+    }
+    header.append("ETag: ").append(etag).append("\r\n");
+    header.append("Accept-Ranges: bytes\r\n");
+    // Phones may keep a copy but have to ask again, which costs only a 304 thanks to the ETag.
+    header.append("Cache-Control: no-cache\r\n");
+    header.append("Connection: close\r\n\r\n");
+    if (head || count == 0) {
+      send(client, header.toString());
+      return;
+    }
+    ScheduledFuture<?> deadline = closeAfter(client, WRITE_TIMEOUT_MILLIS + count * 1000 / MIN_BYTES_PER_SECOND);
+    try {
+      send(client, header.toString());
+      resource.transferTo(start, count, client);
+    } finally {
+      deadline.cancel(false);
+    }
+  }
+
+  private ScheduledFuture<?> closeAfter(final SocketChannel client, long millis) {
+    return mWatchdog.schedule(new Runnable() {
+      @Override public void run() {
+        Log.d(TAG, "Client too slow, closing connection");
+        close(client);
+      }
+    }, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private static void sendStatus(SocketChannel client, int code, String reason) throws IOException {
+    send(client, "HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+  }
+
+  private static void send(WritableByteChannel target, String text) throws IOException {
+    write(target, ByteBuffer.wrap(text.getBytes(ASCII)));
+  }
+
+  private static void write(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      target.write(buffer);
+    }
+  }
+
+  private static void close(SocketChannel client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      Log.d(TAG, "Error closing connection", e);
+    }
+  }
+
+  /**
+   * A local file, sent without copying it through the Java heap.
+   */
+  public static Resource fileResource(final File file, final String contentType) {
+    final long length = file.length();
+    final long modified = file.lastModified();
+    return new Resource() {
+      @Override public long length() {
+        return length;
+      }
+
+      @Override public String etag() {
+        return Long.toHexString(modified) + "-" + Long.toHexString(length);
+      }
+
+      @Override public String contentType() {
+        return contentType;
+      }
+
+      @Override public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+          while (count > 0) {
+            long sent = channel.transferTo(offset, count, target);
+            if (sent <= 0) {
+              throw new IOException("File " + file + " ended early");
+            }
+            offset += sent;
+            count -= sent;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Data that is already in memory, like a photo read from the USB drive.
+   */
+  public static Resource bufferResource(final ByteBuffer data, final String etag, final String contentType) {
+    return new Resource() {
+      @Override public long length() {
+        return data.remaining();
+      }
+
+      @Override public String etag() {
+        return etag;
+      }
+
+      @Override public String contentType() {
+        return contentType;
+      }
+
+      @Override public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer slice = data.duplicate();
+        slice.position(slice.position() + (int) offset);
+        slice.limit(slice.position() + (int) count);
+        write(target, slice);
+      }
+    };
+  }
+}
@@ -0,0 +1,92 @@
+package de.kirsel.fotobox.utilities;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders QR codes straight into printer bands. Every module is scaled by a whole number of dots, so
+ * all modules have the same size, and the encoded bands are cached so printing the same code again
+ * costs nothing.
+ */
+public class QrCodeRenderer {
+  private static final int CACHE_SIZE = 16;
+
+  /**
+   * A QR code encoded as {@link RasterEncoder} bands.
+   */
+  public static class Raster {
+    public final byte[] bands;
+    public final int width;
+    public final int height;
+
+    Raster(byte[] bands, int width, int height) {
+      this.bands = bands;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  private final Map<String, Raster> mCache = new LinkedHashMap<String, Raster>(CACHE_SIZE, 0.75f, true) {
+    @Override protected boolean removeEldestEntry(Map.Entry<String, Raster> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+  private final RasterEncoder mEncoder = new RasterEncoder();
+
+  /**
+   * The bands of a QR code at most {@code size} dots wide, from the cache if it was rendered before.
+   */
+  public synchronized Raster render(String data, int size, ErrorCorrectionLevel ecc) throws WriterException {
+    String key = ecc + "|" + size + "|" + data;
+    Raster raster = mCache.get(key);
+    if (raster == null) {
+      raster = encode(data, size, ecc);
+      mCache.put(key, raster);
+    }
+    return raster;
+  }
+
+  private Raster encode(String data, int size, ErrorCorrectionLevel ecc) throws WriterException {
+    Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+    hints.put(EncodeHintType.ERROR_CORRECTION, ecc);
+    // Size 0 gives one pixel per module, including the quiet zone.
+    BitMatrix matrix = new QRCodeWriter().encode(data, BarcodeFormat.QR_CODE, 0, 0, hints);
+    int modules = matrix.getWidth();
+    int scale = Math.max(1, size / modules);
+    int width = modules * scale;
+    int stride = (width + 7) / 8;
+
+    // Pack the scaled modules into 1-bit rows, a set bit is a dark dot.
+    byte[] bits = new byte[stride * width];
+    for (int y = 0; y < modules; y++) {
+      int rowOffset = y * scale * stride;
+      for (int x = 0; x < modules; x++) {
+        if (matrix.get(x, y)) {
+          for (int dot = x * scale; dot < (x + 1) * scale; dot++) {
+            bits[rowOffset + (dot >> 3)] |= 0x80 >> (dot & 7);
+          }
+        }
+      }
+      for (int copy = 1; copy < scale; copy++) {
+        System.arraycopy(bits, rowOffset, bits, rowOffset + copy * stride, stride);
+      }
+    }
+
+    int bandSize = RasterEncoder.bandSize(width);
+    int bandCount = (width + RasterEncoder.BAND_HEIGHT - 1) / RasterEncoder.BAND_HEIGHT;
+    byte[] bands = new byte[bandSize * bandCount];
+    for (int band = 0; band < bandCount; band++) {
+      ByteBuffer encoded = mEncoder.encodeBand(bits, stride, width, width, band * RasterEncoder.BAND_HEIGHT);
+      encoded.get(bands, band * bandSize, bandSize);
+    }
+    return new Raster(bands, width, width);
+  }
+}
@@ -0,0 +1,87 @@
+package de.kirsel.fotobox.utilities;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes monochrome images into the 24-dot bit image bands ({@code ESC * 33}) of the thermal printer.
+ * Works on plain pixel arrays, so it has no dependency on {@link android.graphics.Bitmap}.
+ * The returned buffer is reused by the next call, so it has to be consumed before encoding the next band.
+ */
+public class RasterEncoder {
+  public static final int BAND_HEIGHT = 24;
+
+  // Same value as android.graphics.Color.BLACK, only pure black pixels are printed.
+  private static final int BLACK = 0xFF000000;
+
+  private static final byte[] SET_LINE_SPACE_24 = { 0x1B, 0x33, 24 };
+  private static final byte[] SELECT_BIT_IMAGE_MODE = { 0x1B, 0x2A, 33 };
+  private static final byte LF = 0xA;
+  private static final int HEADER_SIZE = SET_LINE_SPACE_24.length + SELECT_BIT_IMAGE_MODE.length + 2;
+
+  private byte[] mBand = new byte[0];
+  private ByteBuffer mBandBuffer = ByteBuffer.wrap(mBand);
+
+  /**
+   * Size in bytes of one encoded band of the given width.
+   */
+  public static int bandSize(int width) {
+    return HEADER_SIZE + width * 3 + 1;
+  }
+
+  /**
+   * Encode the band starting at {@code row} of an ARGB image. Pixels below the image are white.
+   */
+  public ByteBuffer encodeBand(int[] pixels, int width, int height, int row) {
+    byte[] band = prepareBand(width);
+    int rows = Math.min(BAND_HEIGHT, height - row);
+    for (int r = 0; r < rows; r++) {
+      int offset = (row + r) * width;
+      int index = HEADER_SIZE + (r >> 3);
+      int mask = 1 << (7 - (r & 7));
+      for (int col = 0; col < width; col++, index += 3) {
+        if (pixels[offset + col] == BLACK) {
+          band[index] |= mask;
+        }
+      }
+    }
+    return mBandBuffer;
+  }
+
+  /**
+   * Encode the band starting at {@code row} of a 1-bit image. Every row takes {@code stride} bytes,
+   * the leftmost pixel is the most significant bit and a set bit is a dark dot.
+   */
+  public ByteBuffer encodeBand(byte[] bits, int stride, int width, int height, int row) {
+    byte[] band = prepareBand(width);
+    int rows = Math.min(BAND_HEIGHT, height - row);
+    for (int r = 0; r < rows; r++) {
+      int offset = (row + r) * stride;
+      int index = HEADER_SIZE + (r >> 3);
+      int mask = 1 << (7 - (r & 7));
+      for (int col = 0; col < width; col++, index += 3) {
+        if ((bits[offset + (col >> 3)] & (0x80 >> (col & 7))) != 0) {
+          band[index] |= mask;
+        }
+      }
+    }
+    return mBandBuffer;
+  }
+
+  private byte[] prepareBand(int width) {
+    int size = bandSize(width);
+    if (mBand.length != size) {
+      mBand = new byte[size];
+      mBandBuffer = ByteBuffer.wrap(mBand);
+      System.arraycopy(SET_LINE_SPACE_24, 0, mBand, 0, SET_LINE_SPACE_24.length);
+      System.arraycopy(SELECT_BIT_IMAGE_MODE, 0, mBand, SET_LINE_SPACE_24.length, SELECT_BIT_IMAGE_MODE.length);
+      mBand[HEADER_SIZE - 2] = (byte) (0x00ff & width);
+      mBand[HEADER_SIZE - 1] = (byte) ((0xff00 & width) >> 8);
+      mBand[size - 1] = LF;
+    } else {
+      Arrays.fill(mBand, HEADER_SIZE, size - 1, (byte) 0);
+    }
+    mBandBuffer.clear();
+    return mBand;
+  }
+}
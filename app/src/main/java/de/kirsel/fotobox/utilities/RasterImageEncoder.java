@@ -0,0 +1,85 @@
+package de.kirsel.fotobox.utilities;
+
+/**
+ * Encodes images for the {@code GS v 0} raster bit image command. Pixels are packed straight into
+ * the command bytes, 8 per byte with the leftmost pixel in the most significant bit.
+ */
+public class RasterImageEncoder {
+  public static final int MAX_SIZE = 0xFFFF;
+
+  private static final byte[] GS_V_0 = { 0x1D, 0x76, 0x30, 0x00 };
+  private static final int HEADER_SIZE = GS_V_0.length + 4;
+
+  // A pixel is white if all channels are above this value.
+  private static final int WHITE_THRESHOLD = 160;
+
+  /**
+   * Encode an ARGB image as {@code GS v 0} commands. With a {@code bandHeight} > 0 the image is split
+   * into several commands of at most that many rows, which keeps the printer's input buffer small.
+   *
+   * @return the command bytes, or null if the image is too large for the command
+   */
+  public static byte[] encode(int[] pixels, int width, int height, int bandHeight) {
+    int stride = (width + 7) / 8;
+    if (stride > MAX_SIZE || height > MAX_SIZE) {
+      return null;
+    }
+    if (bandHeight <= 0 || bandHeight > height) {
+      bandHeight = Math.max(height, 1);
+    }
+    int bands = (height + bandHeight - 1) / bandHeight;
+    byte[] out = new byte[bands * HEADER_SIZE + stride * height];
+
+    int index = 0;
+    for (int row = 0; row < height; row += bandHeight) {
+      int rows = Math.min(bandHeight, height - row);
+      index = writeHeader(out, index, stride, rows);
+      index = packRows(pixels, width, row, rows, out, index);
+    }
+    return out;
+  }
+
+  private static int writeHeader(byte[] out, int index, int stride, int rows) {
+    System.arraycopy(GS_V_0, 0, out, index, GS_V_0.length);
+    index += GS_V_0.length;
+    out[index++] = (byte) (stride & 0xff);
+    out[index++] = (byte) ((stride >> 8) & 0xff);
+    out[index++] = (byte) (rows & 0xff);
+    out[index++] = (byte) ((rows >> 8) & 0xff);
+    return index;
+  }
+
+  /**
+   * Pack {@code rows} rows starting at {@code row} into {@code out}, padding each row to a full byte.
+   *
+   * @return the index behind the last written byte
+   */
+  public static int packRows(int[] pixels, int width, int row, int rows, byte[] out, int index) {
+    for (int y = row; y < row + rows; y++) {
+      int offset = y * width;
+      int bits = 0;
+      int count = 0;
+      for (int x = 0; x < width; x++) {
+        bits <<= 1;
+        if (isDark(pixels[offset + x])) {
+          bits |= 1;
+        }
+        if (++count == 8) {
+          out[index++] = (byte) bits;
+          bits = 0;
+          count = 0;
+        }
+      }
+      if (count > 0) {
+        out[index++] = (byte) (bits << (8 - count));
+      }
+    }
+    return index;
+  }
+
+  private static boolean isDark(int color) {
+    return ((color >> 16) & 0xff) <= WHITE_THRESHOLD
+        || ((color >> 8) & 0xff) <= WHITE_THRESHOLD
+        || (color & 0xff) <= WHITE_THRESHOLD;
+  }
+}
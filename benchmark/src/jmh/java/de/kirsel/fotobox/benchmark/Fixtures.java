@@ -0,0 +1,54 @@
+package de.kirsel.fotobox.benchmark;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Loads the checked-in JPEG fixtures and prepares them the way the app does before printing.
+ */
+final class Fixtures {
+  static final String PHOTO = "/fixtures/photo-1600x1200.jpg";
+  static final int DOT_WIDTH = 384;
+
+  private Fixtures() {
+  }
+
+  static byte[] jpeg(String name) throws IOException {
+    try (InputStream in = Fixtures.class.getResourceAsStream(name)) {
+      if (in == null) {
+        throw new IOException("Missing fixture " + name);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[16 * 1024];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * The fixture scaled to the printer width, as ARGB pixels.
+   */
+  static int[] printPixels(String name) throws IOException {
+    BufferedImage photo = ImageIO.read(new ByteArrayInputStream(jpeg(name)));
+    int height = printHeight(photo.getWidth(), photo.getHeight());
+    BufferedImage scaled = new BufferedImage(DOT_WIDTH, height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = scaled.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.drawImage(photo, 0, 0, DOT_WIDTH, height, null);
+    g.dispose();
+    return scaled.getRGB(0, 0, DOT_WIDTH, height, null, 0, DOT_WIDTH);
+  }
+
+  static int printHeight(int width, int height) {
+    return Math.max(1, Math.round((float) height * DOT_WIDTH / width));
+  }
+}
@@ -0,0 +1,80 @@
+package de.kirsel.fotobox.benchmark;
+
+import de.kirsel.fotobox.hardware.fake.FileStorageSink;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Saving a camera JPEG as it is, compared to decoding it and encoding it again at full quality.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JpegStorageBenchmark {
+  private ByteBuffer mJpeg;
+  private File mDir;
+  private FileStorageSink mSink;
+
+  @Setup(Level.Trial) public void setUp() throws IOException {
+    byte[] jpeg = Fixtures.jpeg(Fixtures.PHOTO);
+    mJpeg = ByteBuffer.allocateDirect(jpeg.length);
+    mJpeg.put(jpeg).flip();
+    mDir = Files.createTempDirectory("fotobox-jpeg").toFile();
+    mSink = new FileStorageSink(mDir);
+  }
+
+  @TearDown(Level.Trial) public void tearDown() {
+    File[] files = mDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    mDir.delete();
+  }
+
+  @Benchmark public boolean passthrough() {
+    return mSink.saveJpeg(mJpeg);
+  }
+
+  @Benchmark public boolean decodeAndReencode() throws IOException {
+    byte[] bytes = new byte[mJpeg.remaining()];
+    mJpeg.duplicate().get(bytes);
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    ImageWriter writer = writers.next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(1.0f);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(stream);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return mSink.saveJpeg(ByteBuffer.wrap(out.toByteArray()));
+  }
+}
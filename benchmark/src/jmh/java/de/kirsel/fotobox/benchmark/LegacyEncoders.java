@@ -0,0 +1,145 @@
+package de.kirsel.fotobox.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The printer encoders as they were before the raster encoders, ported from Bitmap to int[] so they
+ * can run on the JVM. Kept as a reference point for the benchmarks.
+ */
+final class LegacyEncoders {
+  private static final int BLACK = 0xFF000000;
+  private static final int WHITE = 0xFFFFFFFF;
+
+  private static final String HEX = "0123456789ABCDEF";
+  private static final String[] BINARY = {
+      "0000", "0001", "0010", "0011", "0100", "0101", "0110", "0111", "1000", "1001", "1010", "1011", "1100", "1101",
+      "1110", "1111"
+  };
+
+  private LegacyEncoders() {
+  }
+
+  /**
+   * Former ThermalPrinter.printImage, one ESC * 33 band per 24 rows.
+   */
+  static byte[] escStarBands(int[] pixels, int width, int height) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] controlByte = { (byte) (0x00ff & width), (byte) ((0xff00 & width) >> 8) };
+    for (int row = 0; row < height; row += 24) {
+      ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+      imageData.write(0x1B);
+      imageData.write(0x33);
+      imageData.write(24);
+      imageData.write(0x1B);
+      imageData.write(0x2A);
+      imageData.write(33);
+      imageData.write(controlByte, 0, 2);
+      for (int col = 0; col < width; col++) {
+        byte[] bandBytes = { 0x0, 0x0, 0x0 };
+        for (int rowOffset = 0; rowOffset < 8; rowOffset++) {
+          int[] pixelSlice = new int[3];
+          int pixel1Row = row + rowOffset;
+          int pixel2Row = row + rowOffset + 8;
+          int pixel3Row = row + rowOffset + 16;
+          pixelSlice[0] = pixel1Row >= height ? WHITE : pixels[pixel1Row * width + col];
+          pixelSlice[1] = pixel2Row >= height ? WHITE : pixels[pixel2Row * width + col];
+          pixelSlice[2] = pixel3Row >= height ? WHITE : pixels[pixel3Row * width + col];
+          boolean[] isDark = { pixelSlice[0] == BLACK, pixelSlice[1] == BLACK, pixelSlice[2] == BLACK };
+          if (isDark[0]) bandBytes[0] |= 1 << (7 - rowOffset);
+          if (isDark[1]) bandBytes[1] |= 1 << (7 - rowOffset);
+          if (isDark[2]) bandBytes[2] |= 1 << (7 - rowOffset);
+        }
+        imageData.write(bandBytes, 0, 3);
+      }
+      imageData.write(0xA);
+      byte[] band = imageData.toByteArray();
+      out.write(band, 0, band.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Former Utils.decodeBitmap, a single GS v 0 command built through binary and hex strings.
+   */
+  static byte[] gsV0(int[] pixels, int width, int height) {
+    List<String> list = new ArrayList<String>();
+    int zeroCount = width % 8;
+    String zeroStr = "";
+    if (zeroCount > 0) {
+      for (int i = 0; i < (8 - zeroCount); i++) {
+        zeroStr = zeroStr + "0";
+      }
+    }
+    for (int i = 0; i < height; i++) {
+      StringBuffer sb = new StringBuffer();
+      for (int j = 0; j < width; j++) {
+        int color = pixels[i * width + j];
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        if (r > 160 && g > 160 && b > 160) {
+          sb.append("0");
+        } else {
+          sb.append("1");
+        }
+      }
+      if (zeroCount > 0) {
+        sb.append(zeroStr);
+      }
+      list.add(sb.toString());
+    }
+
+    List<String> commandList = new ArrayList<String>();
+    String widthHex = Integer.toHexString(width % 8 == 0 ? width / 8 : (width / 8 + 1));
+    String heightHex = Integer.toHexString(height & 0xff);
+    commandList.add("1D763000" + (widthHex.length() == 1 ? "0" : "") + widthHex + "00"
+        + (heightHex.length() == 1 ? "0" : "") + heightHex + "00");
+    for (String binaryStr : list) {
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; i < binaryStr.length(); i += 8) {
+        sb.append(binaryToHex(binaryStr.substring(i, i + 8)));
+      }
+      commandList.add(sb.toString());
+    }
+
+    List<byte[]> bytes = new ArrayList<byte[]>();
+    int length = 0;
+    for (String hex : commandList) {
+      byte[] d = hexToBytes(hex);
+      bytes.add(d);
+      length += d.length;
+    }
+    byte[] out = new byte[length];
+    int offset = 0;
+    for (byte[] d : bytes) {
+      System.arraycopy(d, 0, out, offset, d.length);
+      offset += d.length;
+    }
+    return out;
+  }
+
+  private static String binaryToHex(String binaryStr) {
+    String hex = "";
+    String f4 = binaryStr.substring(0, 4);
+    String b4 = binaryStr.substring(4, 8);
+    for (int i = 0; i < BINARY.length; i++) {
+      if (f4.equals(BINARY[i])) hex += HEX.substring(i, i + 1);
+    }
+    for (int i = 0; i < BINARY.length; i++) {
+      if (b4.equals(BINARY[i])) hex += HEX.substring(i, i + 1);
+    }
+    return hex;
+  }
+
+  private static byte[] hexToBytes(String hexString) {
+    int length = hexString.length() / 2;
+    char[] hexChars = hexString.toUpperCase().toCharArray();
+    byte[] d = new byte[length];
+    for (int i = 0; i < length; i++) {
+      d[i] = (byte) (HEX.indexOf(hexChars[i * 2]) << 4 | HEX.indexOf(hexChars[i * 2 + 1]));
+    }
+    return d;
+  }
+}
@@ -0,0 +1,43 @@
+package de.kirsel.fotobox.benchmark;
+
+import de.kirsel.fotobox.utilities.Ditherer;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Monochrome conversion of a print sized photo, as done by ImageConverter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MonochromeBenchmark {
+  @Param({ "THRESHOLD", "ORDERED", "FLOYD_STEINBERG" }) public Ditherer.Mode mode;
+
+  private int[] mSource;
+  private int[] mPixels;
+  private int mHeight;
+
+  @Setup(Level.Trial) public void setUp() throws IOException {
+    mSource = Fixtures.printPixels(Fixtures.PHOTO);
+    mPixels = new int[mSource.length];
+    mHeight = mSource.length / Fixtures.DOT_WIDTH;
+  }
+
+  @Benchmark public int[] dither() {
+    System.arraycopy(mSource, 0, mPixels, 0, mSource.length);
+    Ditherer ditherer = new Ditherer(mode, Fixtures.DOT_WIDTH);
+    for (int y = 0; y < mHeight; y++) {
+      ditherer.ditherRow(mPixels, y * Fixtures.DOT_WIDTH, y, mPixels, y * Fixtures.DOT_WIDTH);
+    }
+    return mPixels;
+  }
+}
@@ -0,0 +1,190 @@
+package de.kirsel.fotobox.benchmark;
+
+import de.kirsel.fotobox.hardware.CameraSource;
+import de.kirsel.fotobox.hardware.PrintJob;
+import de.kirsel.fotobox.hardware.PrintSpooler;
+import de.kirsel.fotobox.hardware.StagingStore;
+import de.kirsel.fotobox.hardware.UartWriter;
+import de.kirsel.fotobox.hardware.UsbSync;
+import de.kirsel.fotobox.hardware.fake.FileCameraSource;
+import de.kirsel.fotobox.hardware.fake.FileStorageSink;
+import de.kirsel.fotobox.hardware.fake.RecordingPrinterTransport;
+import de.kirsel.fotobox.utilities.BandPipeline;
+import de.kirsel.fotobox.utilities.Ditherer;
+import de.kirsel.fotobox.utilities.RasterEncoder;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One picture through the whole box, wired like FotoActivity but with the fakes instead of the
+ * hardware: the camera replays the fixture, the capture is staged on the local disk and copied to the
+ * "drive" by {@link UsbSync}, and the photo is dithered, encoded and printed through the
+ * {@link PrintSpooler} and {@link UartWriter} into a recording transport. An operation ends when the
+ * photo is on the drive and the print was written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PipelineBenchmark {
+  private static final int BAUDRATE = 19200;
+  private static final int MAX_HEATING_DOTS = 11;
+  private static final int HEATING_TIME = 0x7F;
+  private static final int HEATING_INTERVAL = 50;
+
+  // Simulated speed of the printer, 0 to measure only the software. The printer's own speed is 19200.
+  @Param({ "0" })
+  public int printerBaudrate;
+
+  private File mDir;
+  private ExecutorService mStorageExecutor;
+  private ExecutorService mEncodeExecutor;
+  private BandPipeline mPipeline;
+  private StagingStore mStaging;
+  private FileStorageSink mDrive;
+  private UsbSync mUsbSync;
+  private RecordingPrinterTransport mTransport;
+  private UartWriter mUartWriter;
+  private PrintSpooler mSpooler;
+  private CameraSource mCamera;
+  private final Semaphore mStaged = new Semaphore(0);
+  private final Semaphore mPrinted = new Semaphore(0);
+
+  @Setup(Level.Trial) public void setUp() throws IOException {
+    mDir = Files.createTempDirectory("fotobox-pipeline").toFile();
+    File fixtures = new File(mDir, "fixtures");
+    fixtures.mkdirs();
+    try (OutputStream out = new FileOutputStream(new File(fixtures, "photo.jpg"))) {
+      out.write(Fixtures.jpeg(Fixtures.PHOTO));
+    }
+
+    mStorageExecutor = Executors.newSingleThreadExecutor();
+    mEncodeExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    mPipeline = new BandPipeline(mEncodeExecutor);
+    mStaging = new StagingStore(new File(mDir, "staging"));
+    mDrive = new FileStorageSink(new File(mDir, "drive"));
+    mUsbSync = new UsbSync(mStaging, mDrive);
+    mTransport = new RecordingPrinterTransport(printerBaudrate);
+    // Without a simulated printer nothing needs pacing, which is what flow control does.
+    mUartWriter = new UartWriter(mTransport, printerBaudrate > 0 ? printerBaudrate : BAUDRATE, MAX_HEATING_DOTS,
+        HEATING_TIME, HEATING_INTERVAL, Fixtures.DOT_WIDTH, printerBaudrate == 0);
+    mSpooler = new PrintSpooler(mUartWriter);
+    mCamera = new FileCameraSource(fixtures, mCallback, 0);
+  }
+
+  @TearDown(Level.Trial) public void tearDown() {
+    mSpooler.close();
+    mUartWriter.close();
+    mUsbSync.shutDown();
+    mStorageExecutor.shutdownNow();
+    mEncodeExecutor.shutdownNow();
+    delete(mDir);
+  }
+
+  @Benchmark public int captureSaveAndPrint() throws InterruptedException {
+    int saved = mDrive.getSavedCount();
+    mCamera.takePicture();
+    mStaged.acquire();
+    mPrinted.acquire();
+    // The drive copy runs on the sync thread, wait until it caught up with this capture.
+    while (mDrive.getSavedCount() == saved) {
+      Thread.sleep(0, 100000);
+    }
+    mTransport.reset();
+    return mDrive.getSavedCount();
+  }
+
+  private final CameraSource.Callback mCallback = new CameraSource.Callback() {
+    @Override public void onJpeg(ByteBuffer jpeg) {
+      // The camera buffer is only valid during the callback, like StorageQueue the storage thread gets a copy.
+      final ByteBuffer copy = ByteBuffer.allocate(jpeg.remaining());
+      copy.put(jpeg.duplicate());
+      copy.flip();
+      mStorageExecutor.execute(new Runnable() {
+        @Override public void run() {
+          mStaging.saveJpeg(copy);
+          mStaged.release();
+        }
+      });
+
+      try {
+        printPhoto(new PrintJob("photo", PrintJob.PRIORITY_NORMAL).setListener(mPrintListener), copy);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not encode the photo", e);
+      }
+    }
+  };
+
+  /**
+   * Same as ThermalPrinter.printPhoto, with the Bitmap scaling done by Java2D.
+   */
+  private void printPhoto(final PrintJob job, ByteBuffer jpeg) throws IOException {
+    byte[] bytes = new byte[jpeg.remaining()];
+    jpeg.duplicate().get(bytes);
+    BufferedImage photo = ImageIO.read(new ByteArrayInputStream(bytes));
+    int height = Fixtures.printHeight(photo.getWidth(), photo.getHeight());
+    BufferedImage scaled = new BufferedImage(Fixtures.DOT_WIDTH, height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = scaled.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.drawImage(photo, 0, 0, Fixtures.DOT_WIDTH, height, null);
+    g.dispose();
+    int[] pixels = scaled.getRGB(0, 0, Fixtures.DOT_WIDTH, height, null, 0, Fixtures.DOT_WIDTH);
+
+    mSpooler.submit(job.open());
+    try {
+      mPipeline.process(pixels, Fixtures.DOT_WIDTH, height, Ditherer.Mode.FLOYD_STEINBERG,
+          new BandPipeline.BandSink() {
+            @Override public void onBand(ByteBuffer band) {
+              job.add(band, RasterEncoder.BAND_HEIGHT);
+            }
+          });
+    } finally {
+      job.seal();
+    }
+  }
+
+  private final PrintJob.Listener mPrintListener = new PrintJob.Listener() {
+    @Override public void onProgress(PrintJob job, int segmentsDone, int segmentCount) {
+    }
+
+    @Override public void onFinished(PrintJob job) {
+      mPrinted.release();
+    }
+
+    @Override public void onCancelled(PrintJob job) {
+      mPrinted.release();
+    }
+  };
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
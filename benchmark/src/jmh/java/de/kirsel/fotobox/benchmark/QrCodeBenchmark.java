@@ -0,0 +1,57 @@
+package de.kirsel.fotobox.benchmark;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import de.kirsel.fotobox.utilities.QrCodeRenderer;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * QR code generation as the former ThermalPrinter.generateQrCode did it, with the Bitmap replaced by an int[],
+ * compared to rendering printer bands directly, with and without the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QrCodeBenchmark {
+  private static final int BLACK = 0xFF000000;
+  private static final int WHITE = 0xFFFFFFFF;
+
+  @Param({ "200", "384" }) public int size;
+
+  private final QrCodeRenderer mRenderer = new QrCodeRenderer();
+  private final String mData = "http://192.168.43.1:8080/photos/1516200000000.JPEG";
+
+  @Benchmark public int[] generateQrCode() throws WriterException {
+    Hashtable<EncodeHintType, ErrorCorrectionLevel> hintMap = new Hashtable<EncodeHintType, ErrorCorrectionLevel>();
+    hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
+    BitMatrix bitMatrix = new QRCodeWriter().encode(mData, BarcodeFormat.QR_CODE, size, size, hintMap);
+    int width = bitMatrix.getWidth();
+    int[] pixels = new int[width * width];
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < width; y++) {
+        pixels[x * width + y] = bitMatrix.get(x, y) ? BLACK : WHITE;
+      }
+    }
+    return pixels;
+  }
+
+  @Benchmark public QrCodeRenderer.Raster renderBands() throws WriterException {
+    return new QrCodeRenderer().render(mData, size, ErrorCorrectionLevel.H);
+  }
+
+  @Benchmark public QrCodeRenderer.Raster renderBandsCached() throws WriterException {
+    return mRenderer.render(mData, size, ErrorCorrectionLevel.H);
+  }
+}
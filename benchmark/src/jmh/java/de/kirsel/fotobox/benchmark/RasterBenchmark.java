@@ -0,0 +1,99 @@
+package de.kirsel.fotobox.benchmark;
+
+import de.kirsel.fotobox.utilities.BandPipeline;
+import de.kirsel.fotobox.utilities.Ditherer;
+import de.kirsel.fotobox.utilities.RasterEncoder;
+import de.kirsel.fotobox.utilities.RasterImageEncoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding a dithered print sized photo into printer commands, old and new encoders side by side.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RasterBenchmark {
+  private int[] mSource;
+  private int[] mMonochrome;
+  private int[] mPixels;
+  private int mHeight;
+  private final RasterEncoder mEncoder = new RasterEncoder();
+  private ExecutorService mExecutor;
+  private BandPipeline mPipeline;
+
+  @Setup(Level.Trial) public void setUp() throws IOException {
+    mSource = Fixtures.printPixels(Fixtures.PHOTO);
+    mHeight = mSource.length / Fixtures.DOT_WIDTH;
+    mMonochrome = mSource.clone();
+    Ditherer ditherer = new Ditherer(Ditherer.Mode.FLOYD_STEINBERG, Fixtures.DOT_WIDTH);
+    for (int y = 0; y < mHeight; y++) {
+      ditherer.ditherRow(mMonochrome, y * Fixtures.DOT_WIDTH, y, mMonochrome, y * Fixtures.DOT_WIDTH);
+    }
+    mPixels = new int[mSource.length];
+    mExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    mPipeline = new BandPipeline(mExecutor);
+  }
+
+  @TearDown(Level.Trial) public void tearDown() {
+    mExecutor.shutdownNow();
+  }
+
+  @Benchmark public byte[] legacyEscStarBands() {
+    return LegacyEncoders.escStarBands(mMonochrome, Fixtures.DOT_WIDTH, mHeight);
+  }
+
+  @Benchmark public void escStarBands(Blackhole blackhole) {
+    for (int row = 0; row < mHeight; row += RasterEncoder.BAND_HEIGHT) {
+      blackhole.consume(mEncoder.encodeBand(mMonochrome, Fixtures.DOT_WIDTH, mHeight, row));
+    }
+  }
+
+  @Benchmark public byte[] legacyGsV0() {
+    return LegacyEncoders.gsV0(mMonochrome, Fixtures.DOT_WIDTH, mHeight);
+  }
+
+  @Benchmark public byte[] gsV0() {
+    return RasterImageEncoder.encode(mMonochrome, Fixtures.DOT_WIDTH, mHeight, 0);
+  }
+
+  /**
+   * Dithering and encoding in one go, single threaded.
+   */
+  @Benchmark public void ditherAndEncodeSequential(Blackhole blackhole) {
+    System.arraycopy(mSource, 0, mPixels, 0, mSource.length);
+    Ditherer ditherer = new Ditherer(Ditherer.Mode.FLOYD_STEINBERG, Fixtures.DOT_WIDTH);
+    for (int y = 0; y < mHeight; y++) {
+      ditherer.ditherRow(mPixels, y * Fixtures.DOT_WIDTH, y, mPixels, y * Fixtures.DOT_WIDTH);
+    }
+    for (int row = 0; row < mHeight; row += RasterEncoder.BAND_HEIGHT) {
+      blackhole.consume(mEncoder.encodeBand(mPixels, Fixtures.DOT_WIDTH, mHeight, row));
+    }
+  }
+
+  /**
+   * Dithering and encoding through the parallel band pipeline.
+   */
+  @Benchmark public void ditherAndEncodePipeline(final Blackhole blackhole) throws IOException {
+    System.arraycopy(mSource, 0, mPixels, 0, mSource.length);
+    mPipeline.process(mPixels, Fixtures.DOT_WIDTH, mHeight, Ditherer.Mode.FLOYD_STEINBERG,
+        new BandPipeline.BandSink() {
+          @Override public void onBand(ByteBuffer band) {
+            blackhole.consume(band);
+          }
+        });
+  }
+}
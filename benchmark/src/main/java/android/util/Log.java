@@ -0,0 +1,42 @@
+package android.util;
+
+/**
+ * Stand-in for the Android logger, so the shared app classes can run on a plain JVM.
+ * Only warnings and errors are printed.
+ */
+public final class Log {
+  private Log() {
+  }
+
+  public static int d(String tag, String msg) {
+    return 0;
+  }
+
+  public static int d(String tag, String msg, Throwable tr) {
+    return 0;
+  }
+
+  public static int i(String tag, String msg) {
+    return 0;
+  }
+
+  public static int w(String tag, String msg) {
+    System.err.println("W/" + tag + ": " + msg);
+    return 0;
+  }
+
+  public static int w(String tag, String msg, Throwable tr) {
+    System.err.println("W/" + tag + ": " + msg + " " + tr);
+    return 0;
+  }
+
+  public static int e(String tag, String msg) {
+    System.err.println("E/" + tag + ": " + msg);
+    return 0;
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    System.err.println("E/" + tag + ": " + msg + " " + tr);
+    return 0;
+  }
+}
@@ -0,0 +1,26 @@
+package de.kirsel.fotobox.hardware.fake;
+
+import de.kirsel.fotobox.hardware.NumberDisplay;
+
+/**
+ * Display that only remembers what it shows, -1 when cleared.
+ */
+public class FakeNumberDisplay implements NumberDisplay {
+  private volatile int mNumber = -1;
+
+  @Override public void display(int number) {
+    mNumber = number;
+  }
+
+  @Override public void clear() {
+    mNumber = -1;
+  }
+
+  @Override public void close() {
+    mNumber = -1;
+  }
+
+  public int getNumber() {
+    return mNumber;
+  }
+}
@@ -0,0 +1,67 @@
+package de.kirsel.fotobox.hardware.fake;
+
+import de.kirsel.fotobox.hardware.CameraSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Camera that replays JPEG fixtures from a directory, one per {@link #takePicture()}, round robin.
+ * The fixtures are loaded into direct buffers up front, like the camera's image planes.
+ */
+public class FileCameraSource implements CameraSource {
+  private final List<ByteBuffer> mFixtures = new ArrayList<>();
+  private final Callback mCallback;
+  private final long mCaptureDelayMillis;
+  private int mNext;
+
+  /**
+   * @param captureDelayMillis simulated time between the request and the picture being available
+   */
+  public FileCameraSource(File fixtureDir, Callback callback, long captureDelayMillis) throws IOException {
+    File[] files = fixtureDir.listFiles();
+    if (files == null) {
+      throw new IOException("Not a directory: " + fixtureDir);
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      if (file.getName().toLowerCase().endsWith(".jpg") || file.getName().toLowerCase().endsWith(".jpeg")) {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+          ByteBuffer jpeg = ByteBuffer.allocateDirect((int) channel.size());
+          while (jpeg.hasRemaining() && channel.read(jpeg) >= 0) {
+            // Keep reading until the buffer is full.
+          }
+          jpeg.flip();
+          mFixtures.add(jpeg);
+        }
+      }
+    }
+    if (mFixtures.isEmpty()) {
+      throw new IOException("No JPEG fixtures in " + fixtureDir);
+    }
+    mCallback = callback;
+    mCaptureDelayMillis = captureDelayMillis;
+  }
+
+  /**
+   * Delivers the next fixture on the calling thread.
+   */
+  @Override public void takePicture() {
+    if (mCaptureDelayMillis > 0) {
+      try {
+        Thread.sleep(mCaptureDelayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    ByteBuffer jpeg = mFixtures.get(mNext);
+    mNext = (mNext + 1) % mFixtures.size();
+    mCallback.onJpeg(jpeg.duplicate());
+  }
+}
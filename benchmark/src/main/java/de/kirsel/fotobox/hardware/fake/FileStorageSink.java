@@ -0,0 +1,46 @@
+package de.kirsel.fotobox.hardware.fake;
+
+import de.kirsel.fotobox.hardware.StorageSink;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores JPEGs as numbered files in a local directory instead of on a USB drive.
+ */
+public class FileStorageSink implements StorageSink {
+  private final File mDir;
+  // Read by other threads, e.g. to wait for a background copy.
+  private volatile int mCount;
+
+  public FileStorageSink(File dir) {
+    mDir = dir;
+  }
+
+  @Override public boolean saveJpeg(ByteBuffer jpeg) {
+    return saveJpeg(String.format("%06d.JPEG", mCount), jpeg);
+  }
+
+  @Override public boolean saveJpeg(String name, ByteBuffer jpeg) {
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      return false;
+    }
+    mCount++;
+    File file = new File(mDir, name);
+    try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+      ByteBuffer source = jpeg.duplicate();
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public int getSavedCount() {
+    return mCount;
+  }
+}
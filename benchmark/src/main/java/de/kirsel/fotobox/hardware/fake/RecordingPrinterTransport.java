@@ -0,0 +1,43 @@
+package de.kirsel.fotobox.hardware.fake;
+
+import de.kirsel.fotobox.hardware.PrinterTransport;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Printer transport that records every byte and takes as long as a real UART at the given baud rate.
+ */
+public class RecordingPrinterTransport implements PrinterTransport {
+  // Start bit, 8 data bits and stop bit.
+  private static final int BITS_PER_BYTE = 10;
+
+  private final ByteArrayOutputStream mRecorded = new ByteArrayOutputStream();
+  private final long mByteNanos;
+
+  /**
+   * @param baudrate simulated speed, 0 for no delay at all
+   */
+  public RecordingPrinterTransport(int baudrate) {
+    mByteNanos = baudrate > 0 ? 1000000000L * BITS_PER_BYTE / baudrate : 0;
+  }
+
+  @Override public synchronized int write(byte[] buffer, int length) {
+    mRecorded.write(buffer, 0, length);
+    long nanos = length * mByteNanos;
+    if (nanos > 0) {
+      try {
+        Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return length;
+  }
+
+  public synchronized byte[] getRecorded() {
+    return mRecorded.toByteArray();
+  }
+
+  public synchronized void reset() {
+    mRecorded.reset();
+  }
+}
@@ -0,0 +1,106 @@
+package de.kirsel.fotobox.benchmark;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import de.kirsel.fotobox.utilities.BandPipeline;
+import de.kirsel.fotobox.utilities.Ditherer;
+import de.kirsel.fotobox.utilities.RasterEncoder;
+import de.kirsel.fotobox.utilities.RasterImageEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The raster encoders have to produce exactly the bytes the printer got from the old code, for the
+ * checked-in fixture in every dither mode.
+ */
+public class RasterEncoderTest {
+  private static int[] sSource;
+  private static int sHeight;
+  private static ExecutorService sExecutor;
+
+  @BeforeClass public static void setUp() throws IOException {
+    sSource = Fixtures.printPixels(Fixtures.PHOTO);
+    sHeight = sSource.length / Fixtures.DOT_WIDTH;
+    sExecutor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterClass public static void tearDown() {
+    sExecutor.shutdownNow();
+  }
+
+  @Test public void escStarBandsMatchLegacy() {
+    for (Ditherer.Mode mode : Ditherer.Mode.values()) {
+      int[] pixels = dither(mode);
+      RasterEncoder encoder = new RasterEncoder();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (int row = 0; row < sHeight; row += RasterEncoder.BAND_HEIGHT) {
+        write(out, encoder.encodeBand(pixels, Fixtures.DOT_WIDTH, sHeight, row));
+      }
+      assertArrayEquals(mode.toString(), LegacyEncoders.escStarBands(pixels, Fixtures.DOT_WIDTH, sHeight),
+          out.toByteArray());
+    }
+  }
+
+  @Test public void packedBandsMatchLegacy() {
+    int[] pixels = dither(Ditherer.Mode.FLOYD_STEINBERG);
+    int stride = (Fixtures.DOT_WIDTH + 7) / 8;
+    byte[] bits = new byte[stride * sHeight];
+    RasterImageEncoder.packRows(pixels, Fixtures.DOT_WIDTH, 0, sHeight, bits, 0);
+
+    RasterEncoder encoder = new RasterEncoder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int row = 0; row < sHeight; row += RasterEncoder.BAND_HEIGHT) {
+      write(out, encoder.encodeBand(bits, stride, Fixtures.DOT_WIDTH, sHeight, row));
+    }
+    assertArrayEquals(LegacyEncoders.escStarBands(pixels, Fixtures.DOT_WIDTH, sHeight), out.toByteArray());
+  }
+
+  @Test public void pipelineMatchesLegacy() throws IOException {
+    for (Ditherer.Mode mode : Ditherer.Mode.values()) {
+      int[] pixels = sSource.clone();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new BandPipeline(sExecutor).process(pixels, Fixtures.DOT_WIDTH, sHeight, mode, new BandPipeline.BandSink() {
+        @Override public void onBand(ByteBuffer band) {
+          write(out, band);
+        }
+      });
+      assertArrayEquals(mode.toString(), LegacyEncoders.escStarBands(dither(mode), Fixtures.DOT_WIDTH, sHeight),
+          out.toByteArray());
+    }
+  }
+
+  @Test public void gsV0MatchesLegacy() {
+    // The old command only had one byte for the height, and rows that don't fill a whole byte are padded.
+    int width = Fixtures.DOT_WIDTH - 5;
+    int height = 255;
+    int[] dithered = dither(Ditherer.Mode.ORDERED);
+    int[] pixels = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      System.arraycopy(dithered, y * Fixtures.DOT_WIDTH, pixels, y * width, width);
+    }
+    assertArrayEquals(LegacyEncoders.gsV0(pixels, width, height), RasterImageEncoder.encode(pixels, width, height, 0));
+  }
+
+  private static int[] dither(Ditherer.Mode mode) {
+    int[] pixels = Arrays.copyOf(sSource, sSource.length);
+    Ditherer ditherer = new Ditherer(mode, Fixtures.DOT_WIDTH);
+    for (int y = 0; y < sHeight; y++) {
+      ditherer.ditherRow(pixels, y * Fixtures.DOT_WIDTH, y, pixels, y * Fixtures.DOT_WIDTH);
+    }
+    return pixels;
+  }
+
+  private static void write(ByteArrayOutputStream out, ByteBuffer band) {
+    ByteBuffer copy = band.duplicate();
+    byte[] bytes = new byte[copy.remaining()];
+    copy.get(bytes);
+    out.write(bytes, 0, bytes.length);
+  }
+}
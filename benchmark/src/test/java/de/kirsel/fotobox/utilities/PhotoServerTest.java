@@ -0,0 +1,115 @@
+package de.kirsel.fotobox.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Downloads a file from a server on localhost, whole, in part and again with its ETag.
+ */
+public class PhotoServerTest {
+  private static final String JPEG = "image/jpeg";
+
+  private static File sFile;
+  private static byte[] sContent;
+  private static PhotoServer sServer;
+
+  @BeforeClass public static void setUp() throws IOException {
+    sContent = new byte[100 * 1024];
+    for (int i = 0; i < sContent.length; i++) {
+      sContent[i] = (byte) (i * 31);
+    }
+    sFile = File.createTempFile("photo", ".JPEG");
+    try (OutputStream out = new FileOutputStream(sFile)) {
+      out.write(sContent);
+    }
+    sServer = new PhotoServer(0, new PhotoServer.Source() {
+      @Override public PhotoServer.Resource find(String path) {
+        return path.equals("photo/test.JPEG") ? PhotoServer.fileResource(sFile, JPEG) : null;
+      }
+    });
+    sServer.start();
+  }
+
+  @AfterClass public static void tearDown() {
+    sServer.stop();
+    sFile.delete();
+  }
+
+  @Test public void servesWholeFile() throws IOException {
+    HttpURLConnection connection = open("photo/test.JPEG");
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(JPEG, connection.getContentType());
+    assertEquals(sContent.length, connection.getContentLength());
+    assertArrayEquals(sContent, read(connection));
+  }
+
+  @Test public void servesRange() throws IOException {
+    HttpURLConnection connection = open("photo/test.JPEG");
+    connection.setRequestProperty("Range", "bytes=1000-1999");
+    assertEquals(206, connection.getResponseCode());
+    assertEquals("bytes 1000-1999/" + sContent.length, connection.getHeaderField("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(sContent, 1000, 2000), read(connection));
+  }
+
+  @Test public void servesSuffixRange() throws IOException {
+    HttpURLConnection connection = open("photo/test.JPEG");
+    connection.setRequestProperty("Range", "bytes=-100");
+    assertEquals(206, connection.getResponseCode());
+    assertArrayEquals(Arrays.copyOfRange(sContent, sContent.length - 100, sContent.length), read(connection));
+  }
+
+  @Test public void rejectsRangeBeyondEnd() throws IOException {
+    HttpURLConnection connection = open("photo/test.JPEG");
+    connection.setRequestProperty("Range", "bytes=" + sContent.length + "-");
+    assertEquals(416, connection.getResponseCode());
+  }
+
+  @Test public void notModifiedWithEtag() throws IOException {
+    HttpURLConnection first = open("photo/test.JPEG");
+    String etag = first.getHeaderField("ETag");
+    assertNotNull(etag);
+    read(first);
+
+    HttpURLConnection second = open("photo/test.JPEG");
+    second.setRequestProperty("If-None-Match", etag);
+    assertEquals(304, second.getResponseCode());
+  }
+
+  @Test public void unknownPathIsNotFound() throws IOException {
+    assertEquals(404, open("photo/missing.JPEG").getResponseCode());
+  }
+
+  private static HttpURLConnection open(String path) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://localhost:" + sServer.getPort() + "/" + path).openConnection();
+    connection.setConnectTimeout(5000);
+    connection.setReadTimeout(5000);
+    return connection;
+  }
+
+  private static byte[] read(HttpURLConnection connection) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = connection.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        out.write(buffer, 0, count);
+      }
+    }
+    return out.toByteArray();
+  }
+}